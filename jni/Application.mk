@@ -1,3 +1,5 @@
 APP_PLATFORM := android-9
+# armeabi (ARMv5) lacks inline 64 bit atomics, see _loadOrdered
+APP_ABI := armeabi-v7a x86
 APP_STL := stlport_static
 # ndk/sources/cxx-stl/stlport/stlport/algorithm
\ No newline at end of file
@@ -15,6 +15,14 @@ extern "C" {
 #include <unistd.h>
 
 #include <net/if.h>
+#include <net/if_arp.h>
+#include <poll.h>
+#include <fcntl.h>
+#include <sys/eventfd.h>
+#include <sys/syscall.h>
+#include <sys/time.h>
+#include <linux/netlink.h>
+#include <linux/rtnetlink.h>
 #include "include/linux/can.h"
 #include "include/linux/can/raw.h"
 #include "include/debug.h"
@@ -32,6 +40,26 @@ extern "C" {
 #define AF_CAN PF_CAN
 #endif
 
+#ifndef ARPHRD_CAN
+#define ARPHRD_CAN 280
+#endif
+
+#ifndef SO_RCVBUFFORCE
+#define SO_RCVBUFFORCE 33
+#endif
+
+#ifndef SO_SNDBUFFORCE
+#define SO_SNDBUFFORCE 32
+#endif
+
+#ifndef SO_RXQ_OVFL
+#define SO_RXQ_OVFL 40
+#endif
+
+#ifndef SO_TIMESTAMP
+#define SO_TIMESTAMP 29
+#endif
+
 static const int ERRNO_BUFFER_LEN = 1024;
 
 /**
@@ -213,8 +241,9 @@ JNIEXPORT void JNICALL Java_com_android_socketcan_CanSocket__1bindToSocket
 /**
  * һ֡
  */
-JNIEXPORT void JNICALL Java_com_android_socketcan_CanSocket__1sendFrame
-(JNIEnv *env, jclass obj, jint fd, jint if_idx, jint canid, jbyteArray data)
+JNIEXPORT jboolean JNICALL Java_com_android_socketcan_CanSocket__1sendFrame
+(JNIEnv *env, jclass obj, jint fd, jint if_idx, jint canid, jbyteArray data,
+ jint offset, jint len)
 {
 	const int flags = 0;
 	ssize_t nbytes;
@@ -230,9 +259,9 @@ JNIEXPORT void JNICALL Java_com_android_socketcan_CanSocket__1sendFrame
 	memset(&frame, 0, sizeof(frame));
 
 	// ȡݳȣ
-	const jsize len = env->GetArrayLength(data);
-	if (env->ExceptionCheck() == JNI_TRUE) {
-		return;
+	if (len < 0 || len > CAN_MAX_DLEN) {
+		throwIllegalArgumentException(env, "illegal frame length");
+		return JNI_FALSE;
 	}
 
 	/**
@@ -264,9 +293,9 @@ JNIEXPORT void JNICALL Java_com_android_socketcan_CanSocket__1sendFrame
 	 */
 	frame.can_id = canid;
 	frame.can_dlc = static_cast<__u8>(len);
-	env->GetByteArrayRegion(data, 0, len, reinterpret_cast<jbyte *>(&frame.data));
+	env->GetByteArrayRegion(data, offset, len, reinterpret_cast<jbyte *>(&frame.data));
 	if (env->ExceptionCheck() == JNI_TRUE) {
-		return;
+		return JNI_FALSE;
 	}
 
 	// úõһ֡
@@ -274,39 +303,120 @@ JNIEXPORT void JNICALL Java_com_android_socketcan_CanSocket__1sendFrame
 			reinterpret_cast<struct sockaddr *>(&addr),
 			sizeof(addr));
 	if (nbytes == -1) {
+		// a full device queue is reported to the caller, not thrown
+		if (errno == ENOBUFS || errno == EAGAIN) {
+			return JNI_FALSE;
+		}
 		throwIOExceptionErrno(env, errno);
 	} else if (nbytes != sizeof(frame)) {
 		throwIOExceptionMsg(env, "send partial frame");
 	}
+	return JNI_TRUE;
 }
 
 /**
  * һ֡
  */
+static ssize_t recvCanMsg(JNIEnv *env, const int fd, struct can_frame *frame,
+		struct sockaddr_can *addr, socklen_t *len, jintArray drops,
+		int *msgFlags, jlong *timestamp)
+{
+	struct iovec iov;
+	struct msghdr msg;
+	char control[CMSG_SPACE(sizeof(uint32_t))
+			+ CMSG_SPACE(sizeof(struct timeval))];
+
+	iov.iov_base = frame;
+	iov.iov_len = sizeof(*frame);
+	memset(&msg, 0, sizeof(msg));
+	msg.msg_name = addr;
+	msg.msg_namelen = *len;
+	msg.msg_iov = &iov;
+	msg.msg_iovlen = 1;
+	msg.msg_control = control;
+	msg.msg_controllen = sizeof(control);
+
+	const ssize_t nbytes = recvmsg(fd, &msg, MSG_DONTWAIT);
+	if (nbytes == -1) {
+		return -1;
+	}
+	*len = msg.msg_namelen;
+	*msgFlags = msg.msg_flags;
+	*timestamp = 0;
+	for (struct cmsghdr *cmsg = CMSG_FIRSTHDR(&msg); cmsg != NULL;
+			cmsg = CMSG_NXTHDR(&msg, cmsg)) {
+		if (cmsg->cmsg_level != SOL_SOCKET) {
+			continue;
+		}
+		// SO_RXQ_OVFL: frames the kernel dropped on this socket so far
+		if (drops != NULL && cmsg->cmsg_type == SO_RXQ_OVFL) {
+			uint32_t count;
+			memcpy(&count, CMSG_DATA(cmsg), sizeof(count));
+			const jint value = static_cast<jint>(count);
+			env->SetIntArrayRegion(drops, 0, 1, &value);
+		}
+		// SO_TIMESTAMP: when the frame reached the socket layer
+		if (cmsg->cmsg_type == SO_TIMESTAMP) {
+			struct timeval tv;
+			memcpy(&tv, CMSG_DATA(cmsg), sizeof(tv));
+			*timestamp = static_cast<jlong>(tv.tv_sec) * 1000000 + tv.tv_usec;
+		}
+	}
+	return nbytes;
+}
+
 JNIEXPORT jobject JNICALL Java_com_android_socketcan_CanSocket__1recvFrame
-(JNIEnv *env, jclass obj, jint fd)
+(JNIEnv *env, jclass obj, jint fd, jint wakeFd, jint timeoutMs,
+		jintArray drops)
 {
-	const int flags = 0;
 	ssize_t nbytes;
 	struct sockaddr_can addr;
 	socklen_t len = sizeof(addr);
 	struct can_frame frame;
+	int msgFlags = 0;
+	jlong timestamp = 0;
 
 	// ʼݽṹ
 	memset(&addr, 0, sizeof(addr));
 	memset(&frame, 0, sizeof(frame));
 
 	// ݣжϣ⣬׳쳣Ϣ
-	nbytes = recvfrom(fd, &frame, sizeof(frame), flags,
-			  reinterpret_cast<struct sockaddr *>(&addr), &len);
-	if (len != sizeof(addr)) {
-		throwIllegalArgumentException(env, "illegal AF_CAN address");
-		return NULL;
+	nbytes = recvCanMsg(env, fd, &frame, &addr, &len, drops, &msgFlags,
+			&timestamp);
+	if (nbytes == -1 && (errno == EAGAIN || errno == EWOULDBLOCK) && timeoutMs != 0) {
+		// nothing queued: wait for the socket or for the wakeup eventfd
+		struct pollfd pfds[2];
+		pfds[0].fd = fd;
+		pfds[0].events = POLLIN;
+		pfds[0].revents = 0;
+		pfds[1].fd = wakeFd;
+		pfds[1].events = POLLIN;
+		pfds[1].revents = 0;
+		const int ready = poll(pfds, 2, timeoutMs);
+		if (ready == -1 && errno != EINTR) {
+			throwIOExceptionErrno(env, errno);
+			return NULL;
+		}
+		if (ready <= 0 || (pfds[0].revents & (POLLIN | POLLERR | POLLHUP)) == 0) {
+			// timeout, signal or wakeup, the caller decides what to do
+			return NULL;
+		}
+		len = sizeof(addr);
+		nbytes = recvCanMsg(env, fd, &frame, &addr, &len, drops, &msgFlags,
+				&timestamp);
 	}
 	if (nbytes == -1) {
+		if (errno == EAGAIN || errno == EWOULDBLOCK || errno == EINTR) {
+			return NULL;
+		}
 		throwIOExceptionErrno(env, errno);
 		return NULL;
-	} else if (nbytes != sizeof(frame)) {
+	}
+	if (len != sizeof(addr)) {
+		throwIllegalArgumentException(env, "illegal AF_CAN address");
+		return NULL;
+	}
+	if (nbytes != sizeof(frame)) {
 		throwIOExceptionMsg(env, "invalid length of received frame");
 		return NULL;
 	}
@@ -348,7 +458,7 @@ JNIEXPORT jobject JNICALL Java_com_android_socketcan_CanSocket__1recvFrame
      *       }
 	 */
 	const jmethodID can_frame_cstr = env->GetMethodID(can_frame_clazz,
-							"<init>", "(II[B)V");
+							"<init>", "(II[BZJ)V");
 	if (can_frame_cstr == NULL) {
 		return NULL;
 	}
@@ -369,10 +479,55 @@ JNIEXPORT jobject JNICALL Java_com_android_socketcan_CanSocket__1recvFrame
 	// һCanFrame
 	const jobject ret = env->NewObject(can_frame_clazz, can_frame_cstr,
 					   addr.can_ifindex, frame.can_id,
-					   data);
+					   data,
+					   // CAN_RAW_RECV_OWN_MSGS echo of a frame this socket sent
+					   (msgFlags & MSG_CONFIRM) != 0 ? JNI_TRUE : JNI_FALSE,
+					   timestamp);
 	return ret;
 }
 
+/**
+ * Create the eventfd used to wake up threads waiting in _recvFrame
+ */
+JNIEXPORT jint JNICALL Java_com_android_socketcan_CanSocket__1openWakeup
+(JNIEnv *env, jclass obj)
+{
+	const int fd = eventfd(0, 0);
+	if (fd == -1) {
+		throwIOExceptionErrno(env, errno);
+		return -1;
+	}
+	const int fl = fcntl(fd, F_GETFL);
+	if (fl == -1 || fcntl(fd, F_SETFL, fl | O_NONBLOCK) == -1) {
+		const int err = errno;
+		close(fd);
+		throwIOExceptionErrno(env, err);
+		return -1;
+	}
+	return fd;
+}
+
+/**
+ * Make the eventfd readable, every poll on it returns until it is drained
+ */
+JNIEXPORT void JNICALL Java_com_android_socketcan_CanSocket__1signalWakeup
+(JNIEnv *env, jclass obj, jint wakeFd)
+{
+	const uint64_t one = 1;
+	if (write(wakeFd, &one, sizeof(one)) == -1 && errno != EAGAIN) {
+		throwIOExceptionErrno(env, errno);
+	}
+}
+
+JNIEXPORT void JNICALL Java_com_android_socketcan_CanSocket__1drainWakeup
+(JNIEnv *env, jclass obj, jint wakeFd)
+{
+	uint64_t count;
+	if (read(wakeFd, &count, sizeof(count)) == -1 && errno != EAGAIN) {
+		throwIOExceptionErrno(env, errno);
+	}
+}
+
 /**
  * Get or set the MTU (Maximum Transfer Unit) of a device using ifr_mtu. Setting the MTU is a privileged operation.
  * Setting the MTU to too small values may cause kernel crashes.
@@ -432,6 +587,282 @@ JNIEXPORT jint JNICALL Java_com_android_socketcan_CanSocket__1getsockopt
 	return _stat;
 }
 
+/**
+ * Set a SOL_SOCKET level option such as SO_RCVBUF
+ */
+JNIEXPORT void JNICALL Java_com_android_socketcan_CanSocket__1setSocketOption
+(JNIEnv *env, jclass obj, jint fd, jint op, jint value)
+{
+	const int _value = value;
+	if (setsockopt(fd, SOL_SOCKET, op, &_value, sizeof(_value)) == -1) {
+		throwIOExceptionErrno(env, errno);
+	}
+}
+
+JNIEXPORT jint JNICALL Java_com_android_socketcan_CanSocket__1getSocketOption
+(JNIEnv *env, jclass obj, jint fd, jint op)
+{
+	int _value = 0;
+	socklen_t len = sizeof(_value);
+	if (getsockopt(fd, SOL_SOCKET, op, &_value, &len) == -1) {
+		throwIOExceptionErrno(env, errno);
+		return -1;
+	}
+	return _value;
+}
+
+/**
+ * Wait until one of fds is readable; ready[i] is set to 1 for every
+ * readable (or failed) descriptor and to 0 for the others
+ */
+JNIEXPORT jint JNICALL Java_com_android_socketcan_CanSocket__1pollSockets
+(JNIEnv *env, jclass obj, jintArray fds, jintArray ready, jint timeoutMs)
+{
+	const jsize count = env->GetArrayLength(fds);
+	if (env->GetArrayLength(ready) < count) {
+		throwIllegalArgumentException(env, "ready array too short");
+		return -1;
+	}
+	jint *fdv = env->GetIntArrayElements(fds, NULL);
+	if (fdv == NULL) {
+		return -1;
+	}
+	struct pollfd *pfds = new struct pollfd[count];
+	for (jsize i = 0; i < count; i++) {
+		pfds[i].fd = fdv[i];
+		pfds[i].events = POLLIN;
+		pfds[i].revents = 0;
+	}
+	env->ReleaseIntArrayElements(fds, fdv, JNI_ABORT);
+
+	int n = poll(pfds, count, timeoutMs);
+	if (n == -1) {
+		const int err = errno;
+		delete[] pfds;
+		if (err == EINTR) {
+			return 0;
+		}
+		throwIOExceptionErrno(env, err);
+		return -1;
+	}
+	jint *readyv = env->GetIntArrayElements(ready, NULL);
+	if (readyv == NULL) {
+		delete[] pfds;
+		return -1;
+	}
+	for (jsize i = 0; i < count; i++) {
+		readyv[i] = (pfds[i].revents & (POLLIN | POLLERR | POLLHUP | POLLNVAL)) != 0;
+	}
+	env->ReleaseIntArrayElements(ready, readyv, 0);
+	delete[] pfds;
+	return n;
+}
+
+/* 64 bit atomics are inlined from ARMv7 on (ldrexd/strexd); on ARMv5 they
+ * would become calls into libatomic, which is not linked */
+#if defined(__arm__) && !defined(__ARM_ARCH_7A__) \
+		&& !(defined(__ARM_ARCH) && __ARM_ARCH >= 7)
+#error "64 bit atomics need ARMv7 or later, see APP_ABI in Application.mk"
+#endif
+
+/**
+ * Load a 64 bit counter of a shared mapping, ordered against all memory
+ * accesses before and after it; offset must be 8 byte aligned
+ */
+JNIEXPORT jlong JNICALL Java_com_android_socketcan_CanSocket__1loadOrdered
+(JNIEnv *env, jclass obj, jobject buffer, jint offset)
+{
+	char *base = static_cast<char *>(env->GetDirectBufferAddress(buffer));
+	if (base == NULL || offset < 0 || (offset & 7) != 0
+			|| offset + 8 > env->GetDirectBufferCapacity(buffer)) {
+		throwIllegalArgumentException(env, "illegal shared buffer offset");
+		return 0;
+	}
+	__sync_synchronize();
+	const jlong value = __atomic_load_n(reinterpret_cast<volatile int64_t *>(base + offset),
+			__ATOMIC_SEQ_CST);
+	__sync_synchronize();
+	return value;
+}
+
+/**
+ * Store a 64 bit counter of a shared mapping, ordered like _loadOrdered
+ */
+JNIEXPORT void JNICALL Java_com_android_socketcan_CanSocket__1storeOrdered
+(JNIEnv *env, jclass obj, jobject buffer, jint offset, jlong value)
+{
+	char *base = static_cast<char *>(env->GetDirectBufferAddress(buffer));
+	if (base == NULL || offset < 0 || (offset & 7) != 0
+			|| offset + 8 > env->GetDirectBufferCapacity(buffer)) {
+		throwIllegalArgumentException(env, "illegal shared buffer offset");
+		return;
+	}
+	__sync_synchronize();
+	__atomic_store_n(reinterpret_cast<volatile int64_t *>(base + offset),
+			static_cast<int64_t>(value), __ATOMIC_SEQ_CST);
+	__sync_synchronize();
+}
+
+/**
+ * Pin the calling thread to one cpu; the raw syscall avoids depending on
+ * the cpu_set_t macros, which old bionic versions lack
+ */
+JNIEXPORT void JNICALL Java_com_android_socketcan_CanSocket__1setThreadAffinity
+(JNIEnv *env, jclass obj, jint cpu)
+{
+	const int bits = 8 * sizeof(unsigned long);
+	unsigned long mask[1024 / (8 * sizeof(unsigned long))];
+	if (cpu < 0 || cpu >= 1024) {
+		throwIllegalArgumentException(env, "illegal cpu");
+		return;
+	}
+	memset(mask, 0, sizeof(mask));
+	mask[cpu / bits] = 1UL << (cpu % bits);
+	if (syscall(__NR_sched_setaffinity, 0, sizeof(mask), mask) == -1) {
+		throwIOExceptionErrno(env, errno);
+	}
+}
+
+
+/*** link monitoring ***/
+
+/**
+ * Open a NETLINK_ROUTE socket that receives RTMGRP_LINK notifications
+ */
+JNIEXPORT jint JNICALL Java_com_android_socketcan_CanSocket__1openNetlinkLink
+(JNIEnv *env, jclass obj)
+{
+	const int fd = socket(AF_NETLINK, SOCK_RAW, NETLINK_ROUTE);
+	if (fd == -1) {
+		throwIOExceptionErrno(env, errno);
+		return -1;
+	}
+
+	struct sockaddr_nl addr;
+	memset(&addr, 0, sizeof(addr));
+	addr.nl_family = AF_NETLINK;
+	addr.nl_groups = RTMGRP_LINK;
+	if (bind(fd, reinterpret_cast<struct sockaddr *>(&addr), sizeof(addr)) != 0) {
+		const int err = errno;
+		close(fd);
+		throwIOExceptionErrno(env, err);
+		return -1;
+	}
+	return fd;
+}
+
+/**
+ * Request a dump of all links, the answers arrive as RTM_NEWLINK messages
+ */
+JNIEXPORT void JNICALL Java_com_android_socketcan_CanSocket__1requestLinkDump
+(JNIEnv *env, jclass obj, jint fd)
+{
+	struct {
+		struct nlmsghdr nlh;
+		struct ifinfomsg ifi;
+	} req;
+
+	memset(&req, 0, sizeof(req));
+	req.nlh.nlmsg_len = NLMSG_LENGTH(sizeof(struct ifinfomsg));
+	req.nlh.nlmsg_type = RTM_GETLINK;
+	req.nlh.nlmsg_flags = NLM_F_REQUEST | NLM_F_DUMP;
+	req.ifi.ifi_family = AF_UNSPEC;
+
+	if (send(fd, &req, req.nlh.nlmsg_len, 0) == -1) {
+		throwIOExceptionErrno(env, errno);
+	}
+}
+
+/**
+ * Wait for one netlink datagram and hand each CAN link message to
+ * CanInterfaceRegistry._onLinkEvent(boolean removed, int ifIndex, int flags, String ifName)
+ * and the end of a dump to CanInterfaceRegistry._onLinkDumpDone()
+ */
+JNIEXPORT jint JNICALL Java_com_android_socketcan_CanSocket__1readLinkEvents
+(JNIEnv *env, jclass obj, jint fd, jobject registry, jint timeoutMs)
+{
+	struct pollfd pfd;
+	pfd.fd = fd;
+	pfd.events = POLLIN;
+	pfd.revents = 0;
+	const int ready = poll(&pfd, 1, timeoutMs);
+	if (ready == -1) {
+		if (errno == EINTR) {
+			return 0;
+		}
+		throwIOExceptionErrno(env, errno);
+		return -1;
+	} else if (ready == 0) {
+		return 0;
+	}
+
+	char buf[8192] __attribute__((aligned(NLMSG_ALIGNTO)));
+	const ssize_t nbytes = recv(fd, buf, sizeof(buf), 0);
+	if (nbytes == -1) {
+		throwIOExceptionErrno(env, errno);
+		return -1;
+	}
+
+	const jclass clazz = env->GetObjectClass(registry);
+	const jmethodID on_link = env->GetMethodID(clazz, "_onLinkEvent",
+						   "(ZIILjava/lang/String;)V");
+	if (on_link == NULL) {
+		return -1;
+	}
+	const jmethodID on_done = env->GetMethodID(clazz, "_onLinkDumpDone", "()V");
+	if (on_done == NULL) {
+		return -1;
+	}
+
+	jint count = 0;
+	int len = static_cast<int>(nbytes);
+	for (struct nlmsghdr *nlh = reinterpret_cast<struct nlmsghdr *>(buf);
+	     NLMSG_OK(nlh, len); nlh = NLMSG_NEXT(nlh, len)) {
+		if (nlh->nlmsg_type == NLMSG_DONE) {
+			env->CallVoidMethod(registry, on_done);
+			if (env->ExceptionCheck() == JNI_TRUE) {
+				return -1;
+			}
+			continue;
+		}
+		if (nlh->nlmsg_type != RTM_NEWLINK && nlh->nlmsg_type != RTM_DELLINK) {
+			continue;
+		}
+		const struct ifinfomsg *ifi =
+			reinterpret_cast<const struct ifinfomsg *>(NLMSG_DATA(nlh));
+		if (ifi->ifi_type != ARPHRD_CAN) {
+			continue;
+		}
+
+		// IFLA_IFNAME is the only attribute we need
+		jstring ifname = NULL;
+		int attrlen = IFLA_PAYLOAD(nlh);
+		for (struct rtattr *rta = IFLA_RTA(ifi); RTA_OK(rta, attrlen);
+		     rta = RTA_NEXT(rta, attrlen)) {
+			if (rta->rta_type == IFLA_IFNAME) {
+				ifname = env->NewStringUTF(
+					reinterpret_cast<const char *>(RTA_DATA(rta)));
+				if (ifname == NULL) {
+					return -1;
+				}
+				break;
+			}
+		}
+
+		env->CallVoidMethod(registry, on_link,
+				    nlh->nlmsg_type == RTM_DELLINK ? JNI_TRUE : JNI_FALSE,
+				    ifi->ifi_index, static_cast<jint>(ifi->ifi_flags),
+				    ifname);
+		if (ifname != NULL) {
+			env->DeleteLocalRef(ifname);
+		}
+		if (env->ExceptionCheck() == JNI_TRUE) {
+			return -1;
+		}
+		count++;
+	}
+	return count;
+}
 
 /*** constants ***/
 
@@ -502,96 +933,40 @@ JNIEXPORT jint JNICALL Java_com_android_socketcan_CanSocket__1fetch_1CAN_1RAW_1F
 	return CAN_RAW_FD_FRAMES;
 }
 
-/*** ADR MANIPULATION FUNCTIONS ***/
-
-JNIEXPORT jint JNICALL Java_com_android_socketcan_CanSocket__1getCANID_1SFF
-(JNIEnv *env, jclass obj, jint canid)
-{
-	// SFF: standard Frame Format
-	return canid & CAN_SFF_MASK;
-}
-
-JNIEXPORT jint JNICALL Java_com_android_socketcan_CanSocket__1getCANID_1EFF
-(JNIEnv *env, jclass obj, jint canid)
-{
-	// SFF: extern Frame Format
-	return canid & CAN_EFF_MASK;
-}
-
-JNIEXPORT jint JNICALL Java_com_android_socketcan_CanSocket__1getCANID_1ERR
-(JNIEnv *env, jclass obj, jint canid)
-{
-	// error
-	return canid & CAN_ERR_MASK;
-}
-
-JNIEXPORT jboolean JNICALL Java_com_android_socketcan_CanSocket__1isSetEFFSFF
-(JNIEnv *env, jclass obj, jint canid)
-{
-	// жǱ׼֡չ֡
-	return (canid & CAN_EFF_FLAG) != 0 ? JNI_TRUE : JNI_FALSE;
-}
-
-JNIEXPORT jboolean JNICALL Java_com_android_socketcan_CanSocket__1isSetRTR
-(JNIEnv *env, jclass obj, jint canid)
-{
-	// жǷԶ֡֡
-	return (canid & CAN_RTR_FLAG) != 0 ? JNI_TRUE : JNI_FALSE;
-}
-
-JNIEXPORT jboolean JNICALL Java_com_android_socketcan_CanSocket__1isSetERR
-(JNIEnv *env, jclass obj, jint canid)
-{
-	// жǷerror
-	return (canid & CAN_ERR_FLAG) != 0 ? JNI_TRUE : JNI_FALSE;
-}
-
-JNIEXPORT jint JNICALL Java_com_android_socketcan_CanSocket__1setEFFSFF
-(JNIEnv *env, jclass obj, jint canid)
+JNIEXPORT jint JNICALL Java_com_android_socketcan_CanSocket__1fetch_1SO_1RCVBUF
+(JNIEnv *env, jclass obj)
 {
-	// ñ׼֡չ֡
-	return canid | CAN_EFF_FLAG;
+	return SO_RCVBUF;
 }
 
-JNIEXPORT jint JNICALL Java_com_android_socketcan_CanSocket__1setRTR
-(JNIEnv *env, jclass obj, jint canid)
+JNIEXPORT jint JNICALL Java_com_android_socketcan_CanSocket__1fetch_1SO_1SNDBUF
+(JNIEnv *env, jclass obj)
 {
-	// Զ֡
-	return canid | CAN_RTR_FLAG;
+	return SO_SNDBUF;
 }
 
-JNIEXPORT jint JNICALL Java_com_android_socketcan_CanSocket__1setERR
-(JNIEnv *env, jclass obj, jint canid)
+JNIEXPORT jint JNICALL Java_com_android_socketcan_CanSocket__1fetch_1SO_1RCVBUFFORCE
+(JNIEnv *env, jclass obj)
 {
-	// ôλ
-	return canid | CAN_ERR_FLAG;
+	return SO_RCVBUFFORCE;
 }
 
-/**
- * Ϊ׼֡
- */
-JNIEXPORT jint JNICALL Java_com_android_socketcan_CanSocket__1clearEFFSFF
-(JNIEnv *env, jclass obj, jint canid)
+JNIEXPORT jint JNICALL Java_com_android_socketcan_CanSocket__1fetch_1SO_1SNDBUFFORCE
+(JNIEnv *env, jclass obj)
 {
-	// չ֡
-	return canid & ~CAN_EFF_FLAG;
+	return SO_SNDBUFFORCE;
 }
 
-/**
- * Ϊ֡
- */
-JNIEXPORT jint JNICALL Java_com_android_socketcan_CanSocket__1clearRTR
-(JNIEnv *env, jclass obj, jint canid)
+JNIEXPORT jint JNICALL Java_com_android_socketcan_CanSocket__1fetch_1SO_1RXQ_1OVFL
+(JNIEnv *env, jclass obj)
 {
-	// Զ֡
-	return canid & ~CAN_RTR_FLAG;
+	return SO_RXQ_OVFL;
 }
 
-JNIEXPORT jint JNICALL Java_com_android_socketcan_CanSocket__1clearERR
-(JNIEnv *env, jclass obj, jint canid)
+JNIEXPORT jint JNICALL Java_com_android_socketcan_CanSocket__1fetch_1SO_1TIMESTAMP
+(JNIEnv *env, jclass obj)
 {
-	// λ
-	return canid & ~CAN_ERR_FLAG;
+	return SO_TIMESTAMP;
 }
 
 #ifdef __cplusplus
@@ -0,0 +1,111 @@
+package com.android.socketcan;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Bounded lock-free multi-producer multi-consumer queue (Vyukov's array
+ * queue). Each slot carries a sequence number that tells producers and
+ * consumers whose turn it is, so offer and poll never allocate.
+ *
+ * @author aplex
+ *
+ * @param <E>
+ */
+final class BoundedQueue<E> {
+	private final Object[] _items;
+	private final AtomicLongArray _sequences;
+	private final int _mask;
+	private final AtomicLong _tail = new AtomicLong();
+	private final AtomicLong _head = new AtomicLong();
+
+	/**
+	 * @param capacity
+	 *            rounded up to a power of two
+	 */
+	BoundedQueue(final int capacity) {
+		if (capacity <= 0 || capacity > (1 << 30)) {
+			throw new IllegalArgumentException("illegal capacity: " + capacity);
+		}
+		int size = 1;
+		while (size < capacity) {
+			size <<= 1;
+		}
+		_items = new Object[size];
+		_sequences = new AtomicLongArray(size);
+		for (int i = 0; i < size; i++) {
+			_sequences.set(i, i);
+		}
+		_mask = size - 1;
+	}
+
+	int capacity() {
+		return _items.length;
+	}
+
+	/**
+	 * @return false if the queue is full
+	 */
+	boolean offer(final E item) {
+		long pos = _tail.get();
+		for (;;) {
+			final int index = (int) pos & _mask;
+			final long diff = _sequences.get(index) - pos;
+			if (diff == 0) {
+				if (_tail.compareAndSet(pos, pos + 1)) {
+					_items[index] = item;
+					/* publishes the item to the consumer */
+					_sequences.set(index, pos + 1);
+					return true;
+				}
+				pos = _tail.get();
+			} else if (diff < 0) {
+				return false;
+			} else {
+				pos = _tail.get();
+			}
+		}
+	}
+
+	/**
+	 * @return the head item or null if the queue is empty
+	 */
+	@SuppressWarnings("unchecked")
+	E poll() {
+		long pos = _head.get();
+		for (;;) {
+			final int index = (int) pos & _mask;
+			final long diff = _sequences.get(index) - (pos + 1);
+			if (diff == 0) {
+				if (_head.compareAndSet(pos, pos + 1)) {
+					final E item = (E) _items[index];
+					_items[index] = null;
+					/* hands the slot back to producers one lap later */
+					_sequences.set(index, pos + _mask + 1);
+					return item;
+				}
+				pos = _head.get();
+			} else if (diff < 0) {
+				return null;
+			} else {
+				pos = _head.get();
+			}
+		}
+	}
+
+	/**
+	 * Only meaningful when a single thread consumes
+	 *
+	 * @return the head item or null if the queue is empty
+	 */
+	@SuppressWarnings("unchecked")
+	E peek() {
+		final long pos = _head.get();
+		final int index = (int) pos & _mask;
+		return _sequences.get(index) == pos + 1 ? (E) _items[index] : null;
+	}
+
+	boolean isEmpty() {
+		return peek() == null;
+	}
+}
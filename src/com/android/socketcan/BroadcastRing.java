@@ -0,0 +1,556 @@
+package com.android.socketcan;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import android.util.Log;
+
+import com.android.socketcan.CanSocket.CanFrame;
+
+/**
+ * A broadcast ring of frames in a memory mapped file, so that one feeder
+ * process receives from the bus and any number of processes read along
+ * without sockets of their own and without a system call per frame.
+ *
+ * Every frame gets a sequence number and lands in slot (sequence mod
+ * capacity). The header holds two counters: "claimed", raised before the
+ * writer touches a slot, and "published", raised after. A reader keeps its
+ * own cursor, copies the slots between its cursor and "published", and
+ * then checks "claimed": slots the writer may have started to overwrite
+ * meanwhile are dropped and counted as lapped. A reader that falls more
+ * than capacity frames behind thus loses the oldest frames but always
+ * notices it.
+ *
+ * create() builds a new file and renames it over the old one, so readers
+ * of the old ring keep a valid mapping; the old header is then marked as
+ * replaced, which readers report through isReplaced().
+ *
+ * The counters are accessed through fenced native loads and stores, which
+ * makes the ring safe between processes. Without libCanSocket the fences
+ * fall back to a lock that only orders threads of one JVM.
+ *
+ * @author aplex
+ *
+ */
+public final class BroadcastRing {
+
+	static final int MAGIC = 0x43414E52;
+	static final int VERSION = 1;
+
+	static final int HEADER_SIZE = 64;
+	private static final int OFF_CAPACITY = 8;
+	private static final int OFF_SLOT_SIZE = 12;
+	private static final int OFF_CLAIMED = 16;
+	private static final int OFF_PUBLISHED = 24;
+	private static final int OFF_REPLACED = 32;
+
+	static final int SLOT_SIZE = 32;
+	private static final int OFF_TIME = 0;
+	private static final int OFF_CAN_ID = 8;
+	private static final int OFF_LENGTH = 12;
+	private static final int OFF_DATA = 16;
+	private static final int OFF_IF_INDEX = 24;
+
+	/* orders the counters when there is no native fence */
+	private static final Object LOCK = new Object();
+
+	private BroadcastRing() {
+	}
+
+	private static long load(final ByteBuffer buffer, final int offset) {
+		if (CanSocket.NATIVE_AVAILABLE) {
+			return CanSocket._loadOrdered(buffer, offset);
+		}
+		synchronized (LOCK) {
+			return buffer.getLong(offset);
+		}
+	}
+
+	private static void store(final ByteBuffer buffer, final int offset,
+			final long value) {
+		if (CanSocket.NATIVE_AVAILABLE) {
+			CanSocket._storeOrdered(buffer, offset, value);
+			return;
+		}
+		synchronized (LOCK) {
+			buffer.putLong(offset, value);
+		}
+	}
+
+	private static MappedByteBuffer map(final File file, final boolean write,
+			final long size) throws IOException {
+		final RandomAccessFile raf = new RandomAccessFile(file, write ? "rw"
+				: "r");
+		try {
+			if (write) {
+				raf.setLength(size);
+			}
+			final MappedByteBuffer buffer = raf.getChannel().map(
+					write ? FileChannel.MapMode.READ_WRITE
+							: FileChannel.MapMode.READ_ONLY, 0,
+					write ? size : raf.length());
+			buffer.order(ByteOrder.LITTLE_ENDIAN);
+			return buffer;
+		} finally {
+			/* the mapping stays valid after the file is closed */
+			raf.close();
+		}
+	}
+
+	/**
+	 * Maps the header of an existing ring for writing
+	 *
+	 * @return null if file is not a ring
+	 */
+	private static MappedByteBuffer mapHeader(final File file)
+			throws IOException {
+		if (!file.isFile()) {
+			return null;
+		}
+		final RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try {
+			if (raf.length() < HEADER_SIZE) {
+				return null;
+			}
+			final MappedByteBuffer buffer = raf.getChannel().map(
+					FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE);
+			buffer.order(ByteOrder.LITTLE_ENDIAN);
+			return buffer.getInt(0) == MAGIC ? buffer : null;
+		} finally {
+			raf.close();
+		}
+	}
+
+	private static void checkLength(final int length) {
+		if (length < 0 || length > 8) {
+			throw new IllegalArgumentException("illegal frame length: "
+					+ length);
+		}
+	}
+
+	/**
+	 * Creates the ring file, replacing an existing one; readers attached to
+	 * the earlier file see isReplaced() and must attach again
+	 *
+	 * @param file
+	 *            e.g. in /dev/shm or an app's files directory shared with
+	 *            the readers
+	 * @param capacity
+	 *            frames, rounded up to a power of two
+	 * @return
+	 * @throws IOException
+	 */
+	public static Writer create(final File file, final int capacity)
+			throws IOException {
+		if (capacity <= 0 || capacity > (1 << 24)) {
+			throw new IllegalArgumentException("illegal capacity: " + capacity);
+		}
+		int size = 1;
+		while (size < capacity) {
+			size <<= 1;
+		}
+		/* a new inode, resizing the old one could fault its readers */
+		final File temp = File.createTempFile("." + file.getName() + "-",
+				null, file.getAbsoluteFile().getParentFile());
+		final MappedByteBuffer buffer;
+		try {
+			buffer = map(temp, true, HEADER_SIZE + (long) size * SLOT_SIZE);
+			buffer.putInt(0, MAGIC);
+			buffer.putInt(4, VERSION);
+			buffer.putInt(OFF_CAPACITY, size);
+			buffer.putInt(OFF_SLOT_SIZE, SLOT_SIZE);
+			store(buffer, OFF_CLAIMED, 0);
+			store(buffer, OFF_PUBLISHED, 0);
+			store(buffer, OFF_REPLACED, 0);
+			final MappedByteBuffer old = mapHeader(file);
+			if (!temp.renameTo(file)) {
+				throw new IOException("cannot rename " + temp + " to " + file);
+			}
+			if (old != null) {
+				store(old, OFF_REPLACED, 1);
+			}
+		} catch (IOException e) {
+			temp.delete();
+			throw e;
+		}
+		return new Writer(buffer, size);
+	}
+
+	/**
+	 * Opens a ring created by another process
+	 *
+	 * @param file
+	 * @param fromOldest
+	 *            start with the oldest frame still in the ring instead of
+	 *            the next one to be written
+	 * @return
+	 * @throws IOException
+	 */
+	public static Reader attach(final File file, final boolean fromOldest)
+			throws IOException {
+		final MappedByteBuffer buffer = map(file, false, 0);
+		if (buffer.capacity() < HEADER_SIZE) {
+			throw new IOException(file + ": not a frame ring");
+		}
+		final long published = load(buffer, OFF_PUBLISHED);
+		if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION
+				|| buffer.getInt(OFF_SLOT_SIZE) != SLOT_SIZE) {
+			throw new IOException(file + ": not a frame ring");
+		}
+		final int capacity = buffer.getInt(OFF_CAPACITY);
+		if (Integer.bitCount(capacity) != 1
+				|| buffer.capacity() < HEADER_SIZE + (long) capacity
+						* SLOT_SIZE) {
+			throw new IOException(file + ": truncated frame ring");
+		}
+		return new Reader(buffer, capacity, fromOldest ? Math.max(0,
+				published - capacity) : published);
+	}
+
+	/**
+	 * The single writing side. Not thread safe.
+	 */
+	public static final class Writer implements Closeable {
+		private static final String TAG = "BroadcastRing";
+		private static final int BATCH_SIZE = 64;
+
+		private final MappedByteBuffer _buffer;
+		private final int _mask;
+		private long _next;
+		private volatile Thread _feeder;
+
+		private final WallClock _clock = WallClock.INSTANCE;
+
+		Writer(final MappedByteBuffer buffer, final int capacity) {
+			this._buffer = buffer;
+			this._mask = capacity - 1;
+		}
+
+		public int getCapacity() {
+			return _mask + 1;
+		}
+
+		/**
+		 * @return frames written so far, i.e. the next sequence number
+		 */
+		public long getPublished() {
+			return _next;
+		}
+
+		/**
+		 * Publishes frames[0, count) with one pair of counter updates
+		 *
+		 * @param frames
+		 * @param count
+		 */
+		public void publish(final CanFrame[] frames, final int count) {
+			for (int i = 0; i < count; i++) {
+				checkLength(frames[i].getData().length);
+			}
+			final long micros = _clock.nowMicros();
+			/* announce the slots before overwriting them */
+			store(_buffer, OFF_CLAIMED, _next + count);
+			for (int i = 0; i < count; i++) {
+				final CanFrame frame = frames[i];
+				final byte[] data = frame.getData();
+				put(_next + i, micros, frame.getCanId()._canId, data, 0,
+						data.length, frame.getCanInterfacae()
+								.getInterfaceIndex());
+			}
+			_next += count;
+			store(_buffer, OFF_PUBLISHED, _next);
+		}
+
+		/**
+		 * Publishes one frame. This is the slow path: every call pays both
+		 * fenced counter updates, two JNI calls, so prefer publish(CanFrame[],
+		 * int) for anything but occasional frames.
+		 *
+		 * @param timeMicros
+		 *            microseconds since the epoch
+		 * @param canId
+		 *            raw canid_t
+		 * @param data
+		 * @param offset
+		 * @param length
+		 *            at most 8
+		 * @param ifIndex
+		 */
+		public void publish(final long timeMicros, final int canId,
+				final byte[] data, final int offset, final int length,
+				final int ifIndex) {
+			checkLength(length);
+			store(_buffer, OFF_CLAIMED, _next + 1);
+			put(_next, timeMicros, canId, data, offset, length, ifIndex);
+			store(_buffer, OFF_PUBLISHED, ++_next);
+		}
+
+		private void put(final long sequence, final long timeMicros,
+				final int canId, final byte[] data, final int offset,
+				final int length, final int ifIndex) {
+			final int slot = HEADER_SIZE + ((int) sequence & _mask)
+					* SLOT_SIZE;
+			_buffer.putLong(slot + OFF_TIME, timeMicros);
+			_buffer.putInt(slot + OFF_CAN_ID, canId);
+			_buffer.putInt(slot + OFF_LENGTH, length);
+			long packed = 0;
+			for (int i = 0; i < length; i++) {
+				packed |= (data[offset + i] & 0xFFL) << (8 * i);
+			}
+			_buffer.putLong(slot + OFF_DATA, packed);
+			_buffer.putInt(slot + OFF_IF_INDEX, ifIndex);
+		}
+
+		/**
+		 * Starts the feeder thread, which publishes everything received on
+		 * socket in batches
+		 *
+		 * @param socket
+		 */
+		public synchronized void start(final CanSocket socket) {
+			if (_feeder != null) {
+				throw new IllegalStateException("already started");
+			}
+			_feeder = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					feed(socket);
+				}
+			}, TAG);
+			_feeder.setDaemon(true);
+			_feeder.start();
+		}
+
+		private void feed(final CanSocket socket) {
+			final Thread self = Thread.currentThread();
+			final CanFrame[] batch = new CanFrame[BATCH_SIZE];
+			try {
+				while (_feeder == self) {
+					int n = 0;
+					batch[n++] = socket.recv();
+					CanFrame frame;
+					while (n < BATCH_SIZE && (frame = socket.tryRecv()) != null) {
+						batch[n++] = frame;
+					}
+					publish(batch, n);
+				}
+			} catch (InterruptedIOException e) { /* stopped by close() */
+			} catch (IOException e) {
+				if (!socket.isClosed()) {
+					Log.e(TAG, "feeder stopped: " + e.getMessage());
+				}
+			} catch (RuntimeException e) {
+				Log.e(TAG, "feeder stopped: " + e);
+			}
+		}
+
+		/**
+		 * Stops the feeder thread; the socket stays open and the file keeps
+		 * its frames
+		 */
+		@Override
+		public void close() {
+			final Thread feeder;
+			synchronized (this) {
+				feeder = _feeder;
+				_feeder = null;
+			}
+			if (feeder == null) {
+				return;
+			}
+			feeder.interrupt();
+			boolean interrupted = false;
+			for (;;) {
+				try {
+					feeder.join();
+					break;
+				} catch (InterruptedException e) {
+					interrupted = true;
+				}
+			}
+			if (interrupted) {
+				Thread.currentThread().interrupt();
+			}
+			_buffer.force();
+		}
+	}
+
+	/**
+	 * One reading side with its own cursor. Not thread safe; every reading
+	 * thread attaches its own Reader.
+	 */
+	public static final class Reader {
+		private static final int BATCH_SIZE = 256;
+
+		private static final long MIN_PARK_NANOS = TimeUnit.MICROSECONDS
+				.toNanos(20);
+		private static final long MAX_PARK_NANOS = TimeUnit.MILLISECONDS
+				.toNanos(1);
+
+		private final MappedByteBuffer _shared;
+		private final ByteBuffer _records;
+		private final int _capacity;
+		private final byte[] _batch = new byte[BATCH_SIZE * SLOT_SIZE];
+		private final ByteBuffer _view = ByteBuffer.wrap(_batch).order(
+				ByteOrder.LITTLE_ENDIAN);
+		private long _cursor;
+		private long _lapped;
+		private int _count;
+		private int _position;
+		private int _offset = -SLOT_SIZE;
+
+		Reader(final MappedByteBuffer shared, final int capacity,
+				final long cursor) {
+			this._shared = shared;
+			this._capacity = capacity;
+			this._cursor = cursor;
+			final ByteBuffer records = shared.duplicate();
+			records.position(HEADER_SIZE);
+			this._records = records.slice();
+		}
+
+		/**
+		 * @return sequence number of the next frame to copy
+		 */
+		public long getCursor() {
+			return _cursor;
+		}
+
+		/**
+		 * @return frames overwritten before this reader got to them
+		 */
+		public long getLapped() {
+			return _lapped;
+		}
+
+		/**
+		 * @return frames published but not read yet, lapped ones included
+		 */
+		public long getBacklog() {
+			return load(_shared, OFF_PUBLISHED) - _cursor + (_count - _position);
+		}
+
+		/**
+		 * @return true once create() replaced the file this reader attached
+		 *         to; no frames follow those already published
+		 */
+		public boolean isReplaced() {
+			return load(_shared, OFF_REPLACED) != 0;
+		}
+
+		/**
+		 * Moves to the next frame without waiting
+		 *
+		 * @return false if no frame is available
+		 */
+		public boolean next() {
+			if (_position == _count && !refill()) {
+				return false;
+			}
+			_offset = _position++ * SLOT_SIZE;
+			return true;
+		}
+
+		/**
+		 * Moves to the next frame, parking between polls
+		 *
+		 * @param timeout
+		 *            negative waits without limit
+		 * @param unit
+		 * @return false on timeout, interrupt or when the ring was replaced
+		 */
+		public boolean next(final long timeout, final TimeUnit unit) {
+			final long deadline = System.nanoTime() + unit.toNanos(timeout);
+			long park = MIN_PARK_NANOS;
+			while (!next()) {
+				if (Thread.currentThread().isInterrupted() || isReplaced()) {
+					return false;
+				}
+				long wait = park;
+				if (timeout >= 0) {
+					final long remaining = deadline - System.nanoTime();
+					if (remaining <= 0) {
+						return false;
+					}
+					wait = Math.min(wait, remaining);
+				}
+				LockSupport.parkNanos(this, wait);
+				park = Math.min(park * 2, MAX_PARK_NANOS);
+			}
+			return true;
+		}
+
+		private boolean refill() {
+			final long published = load(_shared, OFF_PUBLISHED);
+			if (published - _cursor > _capacity) {
+				/* lapped before we even started copying */
+				_lapped += published - _capacity - _cursor;
+				_cursor = published - _capacity;
+			}
+			final int count = (int) Math.min(published - _cursor, BATCH_SIZE);
+			if (count <= 0) {
+				return false;
+			}
+			final int first = (int) _cursor & (_capacity - 1);
+			final int head = Math.min(count, _capacity - first);
+			copy(first, 0, head);
+			copy(0, head, count - head);
+			/* slots below claimed - capacity may have changed under us */
+			final long oldestValid = load(_shared, OFF_CLAIMED) - _capacity;
+			final int torn = (int) Math.max(0,
+					Math.min(count, oldestValid - _cursor));
+			_cursor += count;
+			_lapped += torn;
+			_position = torn;
+			_count = count;
+			return torn < count;
+		}
+
+		private void copy(final int slot, final int to, final int slots) {
+			if (slots == 0) {
+				return;
+			}
+			final ByteBuffer records = _records.duplicate();
+			records.position(slot * SLOT_SIZE);
+			records.get(_batch, to * SLOT_SIZE, slots * SLOT_SIZE);
+		}
+
+		/**
+		 * @return microseconds since the epoch
+		 */
+		public long getTimeMicros() {
+			return _view.getLong(_offset + OFF_TIME);
+		}
+
+		/**
+		 * @return raw canid_t of the current frame
+		 */
+		public int getCanId() {
+			return _view.getInt(_offset + OFF_CAN_ID);
+		}
+
+		public int getLength() {
+			return _view.getInt(_offset + OFF_LENGTH);
+		}
+
+		/**
+		 * @return the payload, byte i in bits 8*i to 8*i+7
+		 */
+		public long getData() {
+			return _view.getLong(_offset + OFF_DATA);
+		}
+
+		public int getInterfaceIndex() {
+			return _view.getInt(_offset + OFF_IF_INDEX);
+		}
+	}
+}
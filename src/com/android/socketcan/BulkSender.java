@@ -0,0 +1,275 @@
+package com.android.socketcan;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import com.android.socketcan.CanSocket.CanId;
+import com.android.socketcan.CanSocket.CanInterface;
+
+/**
+ * Streams a block of data as a sequence of 8 byte classic CAN frames with one
+ * identifier. Payloads are sent straight out of the caller's array or one
+ * reusable staging buffer, so no per-frame objects are created. A full device
+ * queue (ENOBUFS) is answered with an exponential backoff instead of an
+ * error, and the sender can be paced to a target bus load.
+ *
+ * Not thread safe; use one instance per sending thread.
+ *
+ * @author aplex
+ *
+ */
+public final class BulkSender {
+
+	private static final int FRAME_SIZE = 8;
+	private static final int STAGING_SIZE = 512 * FRAME_SIZE;
+
+	private static final long MIN_BACKOFF_NANOS = TimeUnit.MICROSECONDS
+			.toNanos(50);
+	private static final long MAX_BACKOFF_NANOS = TimeUnit.MILLISECONDS
+			.toNanos(10);
+
+	public static final class Stats {
+		private final long _bytes;
+		private final long _frames;
+		private final long _backoffs;
+		private final long _elapsedNanos;
+
+		Stats(final long bytes, final long frames, final long backoffs,
+				final long elapsedNanos) {
+			this._bytes = bytes;
+			this._frames = frames;
+			this._backoffs = backoffs;
+			this._elapsedNanos = elapsedNanos;
+		}
+
+		public long getBytes() {
+			return _bytes;
+		}
+
+		public long getFrames() {
+			return _frames;
+		}
+
+		/**
+		 * @return how often the device queue was full
+		 */
+		public long getBackoffs() {
+			return _backoffs;
+		}
+
+		public long getElapsedNanos() {
+			return _elapsedNanos;
+		}
+
+		public double getBytesPerSecond() {
+			return _elapsedNanos == 0 ? 0 : _bytes * 1e9 / _elapsedNanos;
+		}
+
+		public double getFramesPerSecond() {
+			return _elapsedNanos == 0 ? 0 : _frames * 1e9 / _elapsedNanos;
+		}
+
+		@Override
+		public String toString() {
+			return "Stats [bytes=" + _bytes + ", frames=" + _frames
+					+ ", backoffs=" + _backoffs + ", bytes/s="
+					+ (long) getBytesPerSecond() + ", frames/s="
+					+ (long) getFramesPerSecond() + "]";
+		}
+	}
+
+	private final CanSocket _socket;
+	private final CanInterface _canIf;
+	private final int _canId;
+	private final boolean _extended;
+	private byte[] _staging;
+
+	private int _bitrate;
+	private int _busLoadPercent = 100;
+	private long _maxStallNanos = TimeUnit.SECONDS.toNanos(5);
+	private long _backoffNanos = MIN_BACKOFF_NANOS;
+
+	/* state of the running transfer */
+	private long _nextSendAt;
+	private long _bytes;
+	private long _frames;
+	private long _backoffs;
+
+	public BulkSender(final CanSocket socket, final CanInterface canIf,
+			final CanId canId) {
+		this._socket = socket;
+		this._canIf = canIf;
+		this._canId = canId._canId;
+		this._extended = canId.isSetEFFSFF();
+	}
+
+	/**
+	 * Spaces frames so that they take busLoadPercent of a bus running at
+	 * bitrate; a bitrate of 0 sends as fast as the device queue allows
+	 *
+	 * @param bitrate
+	 * @param busLoadPercent
+	 * @return
+	 */
+	public BulkSender setBusLoad(final int bitrate, final int busLoadPercent) {
+		if (bitrate < 0 || busLoadPercent <= 0 || busLoadPercent > 100) {
+			throw new IllegalArgumentException("illegal bus load: " + bitrate
+					+ " bit/s at " + busLoadPercent + "%");
+		}
+		this._bitrate = bitrate;
+		this._busLoadPercent = busLoadPercent;
+		return this;
+	}
+
+	/**
+	 * How long the device queue may stay full before the transfer fails
+	 *
+	 * @param timeout
+	 * @param unit
+	 * @return
+	 */
+	public BulkSender setMaxStall(final long timeout, final TimeUnit unit) {
+		this._maxStallNanos = unit.toNanos(timeout);
+		return this;
+	}
+
+	public Stats send(final byte[] data, final int offset, final int length)
+			throws IOException {
+		final long start = begin();
+		sendSegments(data, offset, length);
+		return finish(start);
+	}
+
+	/**
+	 * Sends the remaining bytes of src and leaves it at its limit
+	 */
+	public Stats send(final ByteBuffer src) throws IOException {
+		final long start = begin();
+		if (src.hasArray()) {
+			sendSegments(src.array(), src.arrayOffset() + src.position(),
+					src.remaining());
+			src.position(src.limit());
+		} else {
+			final byte[] staging = staging();
+			while (src.hasRemaining()) {
+				final int n = Math.min(src.remaining(), staging.length);
+				src.get(staging, 0, n);
+				sendSegments(staging, 0, n);
+			}
+		}
+		return finish(start);
+	}
+
+	/**
+	 * Sends everything up to the end of the stream. Short reads are carried
+	 * over so only the very last frame can be shorter than 8 bytes.
+	 */
+	public Stats send(final InputStream in) throws IOException {
+		final long start = begin();
+		final byte[] staging = staging();
+		int fill = 0;
+		for (int n; (n = in.read(staging, fill, staging.length - fill)) != -1;) {
+			fill = sendWhole(staging, fill + n);
+		}
+		sendSegments(staging, 0, fill);
+		return finish(start);
+	}
+
+	/**
+	 * Sends everything up to the end of the channel, e.g. a FileChannel
+	 */
+	public Stats send(final ReadableByteChannel channel) throws IOException {
+		final long start = begin();
+		final byte[] staging = staging();
+		final ByteBuffer buffer = ByteBuffer.wrap(staging);
+		while (channel.read(buffer) != -1) {
+			buffer.position(sendWhole(staging, buffer.position()));
+		}
+		sendSegments(staging, 0, buffer.position());
+		return finish(start);
+	}
+
+	private byte[] staging() {
+		if (_staging == null) {
+			_staging = new byte[STAGING_SIZE];
+		}
+		return _staging;
+	}
+
+	/**
+	 * Sends the whole frames of staging[0, fill) and moves the rest to the
+	 * front
+	 *
+	 * @return bytes left at the front
+	 */
+	private int sendWhole(final byte[] staging, final int fill)
+			throws IOException {
+		final int whole = fill - fill % FRAME_SIZE;
+		sendSegments(staging, 0, whole);
+		System.arraycopy(staging, whole, staging, 0, fill - whole);
+		return fill - whole;
+	}
+
+	private long begin() {
+		_bytes = 0;
+		_frames = 0;
+		_backoffs = 0;
+		final long now = System.nanoTime();
+		_nextSendAt = now;
+		return now;
+	}
+
+	private Stats finish(final long start) {
+		return new Stats(_bytes, _frames, _backoffs, System.nanoTime() - start);
+	}
+
+	private void sendSegments(final byte[] data, final int offset,
+			final int length) throws IOException {
+		final int end = offset + length;
+		for (int pos = offset; pos < end; pos += FRAME_SIZE) {
+			sendFrame(data, pos, Math.min(FRAME_SIZE, end - pos));
+		}
+	}
+
+	private void sendFrame(final byte[] data, final int offset,
+			final int length) throws IOException {
+		if (_bitrate > 0) {
+			Pacer.pauseUntil(_nextSendAt);
+		}
+		long stalledSince = 0;
+		boolean stalled = false;
+		while (!_socket.trySend(_canIf, _canId, data, offset, length)) {
+			final long now = System.nanoTime();
+			if (!stalled) {
+				stalled = true;
+				stalledSince = now;
+			} else if (now - stalledSince > _maxStallNanos) {
+				throw new IOException("transmit queue full for "
+						+ TimeUnit.NANOSECONDS.toMillis(now - stalledSince)
+						+ " ms");
+			}
+			_backoffs++;
+			LockSupport.parkNanos(_backoffNanos);
+			if (Thread.interrupted()) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("bulk transfer interrupted");
+			}
+			_backoffNanos = Math.min(_backoffNanos * 2, MAX_BACKOFF_NANOS);
+		}
+		if (!stalled) {
+			_backoffNanos = Math.max(_backoffNanos / 2, MIN_BACKOFF_NANOS);
+		}
+		_frames++;
+		_bytes += length;
+		if (_bitrate > 0) {
+			final long interval = Pacer.frameNanos(_extended, length, _bitrate)
+					* 100 / _busLoadPercent;
+			_nextSendAt = Math.max(_nextSendAt, System.nanoTime()) + interval;
+		}
+	}
+}
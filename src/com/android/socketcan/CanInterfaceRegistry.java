@@ -0,0 +1,307 @@
+package com.android.socketcan;
+
+import java.io.IOException;
+import java.util.BitSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import android.util.Log;
+
+import com.android.socketcan.CanSocket.CanInterface;
+
+/**
+ * Process wide table of canonical CanInterface instances keyed by ifindex.
+ * Received frames share these instances instead of allocating their own, and
+ * while watching a RTMGRP_LINK netlink subscription keeps names and link
+ * state current and pushes up/down changes to listeners.
+ *
+ * Names and link state are only trusted once a full link dump has been
+ * read after the subscription started, or after events were lost; entries
+ * netlink reported before but the dump doesn't mention are dropped as
+ * removed. The dump only covers CAN links, so other interfaces interned by
+ * name or index are left alone.
+ *
+ * @author aplex
+ *
+ */
+public final class CanInterfaceRegistry {
+
+	private static final String TAG = "CanInterfaceRegistry";
+
+	/* ifindexes above this are not interned */
+	private static final int MAX_DENSE_INDEX = 0x10000;
+
+	private static final int POLL_TIMEOUT_MS = 500;
+
+	private static final int IFF_UP = 0x1;
+	private static final int IFF_RUNNING = 0x40;
+
+	public interface LinkStateListener {
+		/**
+		 * Called when an interface becomes usable (IFF_UP and IFF_RUNNING) or
+		 * stops being usable
+		 */
+		void onLinkStateChanged(CanInterface canIf, boolean up);
+
+		/**
+		 * Called when an interface is removed from the system
+		 */
+		void onLinkRemoved(CanInterface canIf);
+	}
+
+	private static final CanInterfaceRegistry INSTANCE = new CanInterfaceRegistry();
+
+	public static CanInterfaceRegistry getInstance() {
+		return INSTANCE;
+	}
+
+	private final Object _lock = new Object();
+	private volatile CanInterface[] _byIndex = new CanInterface[16];
+	private final ConcurrentHashMap<String, CanInterface> _byName = new ConcurrentHashMap<String, CanInterface>();
+	private final CopyOnWriteArrayList<LinkStateListener> _listeners = new CopyOnWriteArrayList<LinkStateListener>();
+
+	private volatile Thread _watcher;
+	/* a complete dump was read since subscribing or losing events */
+	private volatile boolean _synced;
+	/* ifindexes reported by the running dump, used by the watcher only */
+	private final BitSet _dumped = new BitSet();
+	/* ifindexes netlink ever reported and not removed, watcher only */
+	private final BitSet _reported = new BitSet();
+
+	private CanInterfaceRegistry() {
+	}
+
+	/**
+	 * Returns the canonical instance for ifIndex, creating it on first use
+	 *
+	 * @param ifIndex
+	 * @return
+	 */
+	public CanInterface intern(final int ifIndex) {
+		final CanInterface[] table = _byIndex;
+		if (ifIndex >= 0 && ifIndex < table.length) {
+			final CanInterface canIf = table[ifIndex];
+			if (canIf != null) {
+				return canIf;
+			}
+		}
+		return intern(ifIndex, null);
+	}
+
+	CanInterface intern(final int ifIndex, final String ifName) {
+		if (ifIndex < 0 || ifIndex >= MAX_DENSE_INDEX) {
+			return new CanInterface(ifIndex, ifName);
+		}
+		synchronized (_lock) {
+			CanInterface[] table = _byIndex;
+			CanInterface canIf = ifIndex < table.length ? table[ifIndex] : null;
+			if (canIf == null) {
+				canIf = new CanInterface(ifIndex, ifName);
+				if (ifIndex >= table.length) {
+					final CanInterface[] grown = new CanInterface[Math.max(
+							ifIndex + 1, table.length * 2)];
+					System.arraycopy(table, 0, grown, 0, table.length);
+					table = grown;
+				} else {
+					table = table.clone();
+				}
+				table[ifIndex] = canIf;
+				_byIndex = table;
+			}
+			if (ifName != null) {
+				final String oldName = canIf.getIfName();
+				if (oldName != null && !oldName.equals(ifName)) {
+					_byName.remove(oldName);
+				}
+				canIf._ifName = ifName;
+				_byName.put(ifName, canIf);
+			}
+			return canIf;
+		}
+	}
+
+	/**
+	 * Looks up an interface by name. Only answers while watching and in
+	 * sync with the kernel, since otherwise the cached index may belong to
+	 * a removed interface.
+	 *
+	 * @param ifName
+	 * @return the canonical instance or null
+	 */
+	CanInterface lookup(final String ifName) {
+		return _synced ? _byName.get(ifName) : null;
+	}
+
+	/**
+	 * Link state of canIf as last reported by netlink; false when not
+	 * watching
+	 *
+	 * @param canIf
+	 * @return
+	 */
+	public boolean isUp(final CanInterface canIf) {
+		if (!_synced) {
+			return false;
+		}
+		final int ifIndex = canIf.getInterfaceIndex();
+		final CanInterface[] table = _byIndex;
+		if (ifIndex < 0 || ifIndex >= table.length || table[ifIndex] == null) {
+			return false;
+		}
+		return isUp(table[ifIndex]._linkFlags);
+	}
+
+	private static boolean isUp(final int flags) {
+		return (flags & (IFF_UP | IFF_RUNNING)) == (IFF_UP | IFF_RUNNING);
+	}
+
+	public void addLinkStateListener(final LinkStateListener listener)
+			throws IOException {
+		_listeners.add(listener);
+		startWatching();
+	}
+
+	public void removeLinkStateListener(final LinkStateListener listener) {
+		_listeners.remove(listener);
+	}
+
+	/**
+	 * Subscribes to RTMGRP_LINK and loads the current link table
+	 *
+	 * @throws IOException
+	 */
+	public synchronized void startWatching() throws IOException {
+		if (_watcher != null) {
+			return;
+		}
+		final int fd = CanSocket._openNetlinkLink();
+		_synced = false;
+		_dumped.clear();
+		try {
+			CanSocket._requestLinkDump(fd);
+		} catch (IOException e) {
+			CanSocket._close(fd);
+			throw e;
+		}
+		_watcher = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				watch(fd);
+			}
+		}, TAG);
+		_watcher.setDaemon(true);
+		_watcher.start();
+	}
+
+	public synchronized void stopWatching() {
+		if (_watcher == null) {
+			return;
+		}
+		_synced = false;
+		_watcher = null;
+	}
+
+	private void watch(final int fd) {
+		try {
+			while (_watcher == Thread.currentThread()) {
+				try {
+					CanSocket._readLinkEvents(fd, this, POLL_TIMEOUT_MS);
+				} catch (IOException e) {
+					/* most likely ENOBUFS: events were lost, reload the table */
+					Log.e(TAG, "netlink: " + e.getMessage());
+					_synced = false;
+					_dumped.clear();
+					CanSocket._requestLinkDump(fd);
+				}
+			}
+		} catch (IOException e) {
+			Log.e(TAG, "link watcher stopped: " + e.getMessage());
+		} catch (RuntimeException e) {
+			Log.e(TAG, "link watcher stopped: " + e);
+		} finally {
+			synchronized (this) {
+				if (_watcher == Thread.currentThread()) {
+					_synced = false;
+					_watcher = null;
+				}
+			}
+			try {
+				CanSocket._close(fd);
+			} catch (IOException e) { /* EMPTY */
+			}
+		}
+	}
+
+	private void notifyRemoved(final CanInterface canIf) {
+		for (LinkStateListener listener : _listeners) {
+			try {
+				listener.onLinkRemoved(canIf);
+			} catch (RuntimeException e) {
+				Log.e(TAG, "listener failed: " + e);
+			}
+		}
+	}
+
+	/* this method is used in native code */
+	@SuppressWarnings("unused")
+	private void _onLinkDumpDone() {
+		if (_synced || _watcher != Thread.currentThread()) {
+			/* no reload pending, or a watcher that was stopped meanwhile */
+			return;
+		}
+		/* links reported earlier but missing from the dump were removed */
+		final BitSet gone = (BitSet) _reported.clone();
+		gone.andNot(_dumped);
+		for (int i = gone.nextSetBit(0); i >= 0; i = gone.nextSetBit(i + 1)) {
+			_onLinkEvent(true, i, 0, null);
+		}
+		_dumped.clear();
+		_synced = true;
+	}
+
+	/* this method is used in native code */
+	@SuppressWarnings("unused")
+	private void _onLinkEvent(final boolean removed, final int ifIndex,
+			final int flags, final String ifName) {
+		if (removed) {
+			if (ifIndex >= 0 && ifIndex < MAX_DENSE_INDEX) {
+				_reported.clear(ifIndex);
+			}
+			final CanInterface canIf;
+			synchronized (_lock) {
+				final CanInterface[] table = _byIndex.clone();
+				if (ifIndex < 0 || ifIndex >= table.length
+						|| table[ifIndex] == null) {
+					return;
+				}
+				canIf = table[ifIndex];
+				table[ifIndex] = null;
+				_byIndex = table;
+				if (canIf.getIfName() != null) {
+					_byName.remove(canIf.getIfName());
+				}
+			}
+			canIf._linkFlags = 0;
+			notifyRemoved(canIf);
+			return;
+		}
+		if (ifIndex >= 0 && ifIndex < MAX_DENSE_INDEX) {
+			_reported.set(ifIndex);
+			if (!_synced) {
+				_dumped.set(ifIndex);
+			}
+		}
+		final CanInterface canIf = intern(ifIndex, ifName);
+		final boolean wasUp = isUp(canIf._linkFlags);
+		canIf._linkFlags = flags;
+		if (wasUp != isUp(flags)) {
+			for (LinkStateListener listener : _listeners) {
+				try {
+					listener.onLinkStateChanged(canIf, !wasUp);
+				} catch (RuntimeException e) {
+					Log.e(TAG, "listener failed: " + e);
+				}
+			}
+		}
+	}
+}
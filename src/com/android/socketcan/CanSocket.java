@@ -4,17 +4,39 @@ import java.io.Closeable;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.spi.AbstractInterruptibleChannel;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.EnumSet;
 import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public final class CanSocket implements Closeable {
-	static {
-		System.loadLibrary("CanSocket");
+	/* false when libCanSocket could not be loaded, only non-native transports work then */
+	static final boolean NATIVE_AVAILABLE = loadNativeLibrary();
+
+	private static boolean loadNativeLibrary() {
+		try {
+			System.loadLibrary("CanSocket");
+			return true;
+		} catch (UnsatisfiedLinkError e) {
+			return false;
+		}
 	}
 
+	/* canid_t bits, see linux/can.h */
+	static final int CAN_EFF_FLAG = 0x80000000;
+	static final int CAN_RTR_FLAG = 0x40000000;
+	static final int CAN_ERR_FLAG = 0x20000000;
+	static final int CAN_SFF_MASK = 0x000007FF;
+	static final int CAN_EFF_MASK = 0x1FFFFFFF;
+	static final int CAN_ERR_MASK = 0x1FFFFFFF;
+
 	private static void copyStream(final InputStream in, final OutputStream out)
 			throws IOException {
 		final int BYTE_BUFFER_SIZE = 0x1000;
@@ -29,102 +51,6 @@ public final class CanSocket implements Closeable {
 	 */
 	public static final CanInterface CAN_ALL_INTERFACES = new CanInterface(0);
 
-	/**
-	 * ȡcanidеı׼֡ЧλSFF
-	 * 
-	 * @param canid
-	 * @return
-	 */
-	private static native int _getCANID_SFF(final int canid);
-
-	/**
-	 * ȡcanidеչ֡ЧλEFF
-	 * 
-	 * @param canid
-	 * @return
-	 */
-	private static native int _getCANID_EFF(final int canid);
-
-	/**
-	 * canidλEFFRTRERR?
-	 * 
-	 * @param canid
-	 * @return
-	 */
-	private static native int _getCANID_ERR(final int canid);
-
-	/**
-	 * жչ֡Ǳ׼֡
-	 * 
-	 * @param canid
-	 * @return
-	 */
-	private static native boolean _isSetEFFSFF(final int canid);
-
-	/**
-	 * жԶ֡֡
-	 * 
-	 * @param canid
-	 * @return
-	 */
-	private static native boolean _isSetRTR(final int canid);
-
-	/**
-	 * жǷΪ־λ?
-	 * 
-	 * @param canid
-	 * @return
-	 */
-	private static native boolean _isSetERR(final int canid);
-
-	/**
-	 * Ϊչ֡
-	 * 
-	 * @param canid
-	 * @return
-	 */
-	private static native int _setEFFSFF(final int canid);
-
-	/**
-	 * ΪԶ֡
-	 * 
-	 * @param canid
-	 * @return
-	 */
-	private static native int _setRTR(final int canid);
-
-	/**
-	 * ô־?
-	 * 
-	 * @param canid
-	 * @return
-	 */
-	private static native int _setERR(final int canid);
-
-	/**
-	 * Ϊ׼֡
-	 * 
-	 * @param canid
-	 * @return
-	 */
-	private static native int _clearEFFSFF(final int canid);
-
-	/**
-	 * Ϊ֡
-	 * 
-	 * @param canid
-	 * @return
-	 */
-	private static native int _clearRTR(final int canid);
-
-	/**
-	 * ־?
-	 * 
-	 * @param canid
-	 * @return
-	 */
-	private static native int _clearERR(final int canid);
-
 	/**
 	 * һsocket RAWļظļ
 	 * 
@@ -147,7 +73,7 @@ public final class CanSocket implements Closeable {
 	 * @param fd
 	 * @throws IOException
 	 */
-	private static native void _close(final int fd) throws IOException;
+	static native void _close(final int fd) throws IOException;
 
 	/**
 	 * ȡfdӦifNameӦMTU
@@ -210,10 +136,64 @@ public final class CanSocket implements Closeable {
 	 * һ֡ݣCanFrame
 	 * 
 	 * @param fd
+	 * @param wakeFd
+	 *            eventfd that aborts the wait when signalled
+	 * @param timeoutMs
+	 *            0 never waits, -1 waits without limit
+	 * @return null on timeout or wakeup
+	 * @throws IOException
+	 */
+	private static native CanFrame _recvFrame(final int fd, final int wakeFd,
+			final int timeoutMs, final int[] drops) throws IOException;
+
+	/**
+	 * Creates a non-blocking eventfd used to wake up threads waiting in
+	 * _recvFrame
+	 * 
 	 * @return
 	 * @throws IOException
 	 */
-	private static native CanFrame _recvFrame(final int fd) throws IOException;
+	static native int _openWakeup() throws IOException;
+
+	static native void _signalWakeup(final int wakeFd) throws IOException;
+
+	static native void _drainWakeup(final int wakeFd) throws IOException;
+
+	/**
+	 * Waits until at least one of fds is readable
+	 * 
+	 * @param fds
+	 * @param ready
+	 *            set to 1 for every readable descriptor, 0 for the others
+	 * @param timeoutMs
+	 *            -1 waits without limit
+	 * @return number of readable descriptors, 0 on timeout or signal
+	 * @throws IOException
+	 */
+	static native int _pollSockets(final int[] fds, final int[] ready,
+			final int timeoutMs) throws IOException;
+
+	/**
+	 * Pins the calling thread to one cpu with sched_setaffinity
+	 * 
+	 * @param cpu
+	 * @throws IOException
+	 */
+	static native void _setThreadAffinity(final int cpu) throws IOException;
+
+	/**
+	 * Reads a long of a direct buffer with full fences on both sides, for
+	 * counters shared with other processes through a mapping
+	 * 
+	 * @param buffer
+	 * @param offset
+	 *            8 byte aligned
+	 * @return
+	 */
+	static native long _loadOrdered(final ByteBuffer buffer, final int offset);
+
+	static native void _storeOrdered(final ByteBuffer buffer,
+			final int offset, final long value);
 
 	/**
 	 * һ֡
@@ -222,20 +202,25 @@ public final class CanSocket implements Closeable {
 	 * @param canif
 	 * @param canid
 	 * @param data
+	 * @param offset
+	 * @param length
+	 * @return false if the device queue is full (ENOBUFS)
 	 * @throws IOException
 	 */
-	private static native void _sendFrame(final int fd, final int canif,
-			final int canid, final byte[] data) throws IOException;
+	private static native boolean _sendFrame(final int fd, final int canif,
+			final int canid, final byte[] data, final int offset,
+			final int length) throws IOException;
 
 	/**
 	 * ȡCANMTU
 	 */
-	public static final int CAN_MTU = _fetch_CAN_MTU();
+	public static final int CAN_MTU = NATIVE_AVAILABLE ? _fetch_CAN_MTU() : 16;
 
 	/**
 	 * ȡCAN FDMTU
 	 */
-	public static final int CAN_FD_MTU = _fetch_CAN_FD_MTU();
+	public static final int CAN_FD_MTU = NATIVE_AVAILABLE ? _fetch_CAN_FD_MTU()
+			: 72;
 
 	/**
 	 * ȡṩ_setsockopt_getsockoptõoption
@@ -252,11 +237,16 @@ public final class CanSocket implements Closeable {
 
 	private static native int _fetch_CAN_RAW_FD_FRAMES();
 
-	private static final int CAN_RAW_FILTER = _fetch_CAN_RAW_FILTER();
-	private static final int CAN_RAW_ERR_FILTER = _fetch_CAN_RAW_ERR_FILTER();
-	private static final int CAN_RAW_LOOPBACK = _fetch_CAN_RAW_LOOPBACK();
-	private static final int CAN_RAW_RECV_OWN_MSGS = _fetch_CAN_RAW_RECV_OWN_MSGS();
-	private static final int CAN_RAW_FD_FRAMES = _fetch_CAN_RAW_FD_FRAMES();
+	private static final int CAN_RAW_FILTER = NATIVE_AVAILABLE ? _fetch_CAN_RAW_FILTER()
+			: 1;
+	private static final int CAN_RAW_ERR_FILTER = NATIVE_AVAILABLE ? _fetch_CAN_RAW_ERR_FILTER()
+			: 2;
+	private static final int CAN_RAW_LOOPBACK = NATIVE_AVAILABLE ? _fetch_CAN_RAW_LOOPBACK()
+			: 3;
+	private static final int CAN_RAW_RECV_OWN_MSGS = NATIVE_AVAILABLE ? _fetch_CAN_RAW_RECV_OWN_MSGS()
+			: 4;
+	private static final int CAN_RAW_FD_FRAMES = NATIVE_AVAILABLE ? _fetch_CAN_RAW_FD_FRAMES()
+			: 5;
 
 	/**
 	 * socket option
@@ -272,6 +262,76 @@ public final class CanSocket implements Closeable {
 	private static native int _getsockopt(final int fd, final int op)
 			throws IOException;
 
+	private static native int _fetch_SO_RCVBUF();
+
+	private static native int _fetch_SO_SNDBUF();
+
+	private static native int _fetch_SO_RCVBUFFORCE();
+
+	private static native int _fetch_SO_SNDBUFFORCE();
+
+	private static native int _fetch_SO_RXQ_OVFL();
+
+	private static native int _fetch_SO_TIMESTAMP();
+
+	private static final int SO_RCVBUF = NATIVE_AVAILABLE ? _fetch_SO_RCVBUF()
+			: 8;
+	private static final int SO_SNDBUF = NATIVE_AVAILABLE ? _fetch_SO_SNDBUF()
+			: 7;
+	private static final int SO_RCVBUFFORCE = NATIVE_AVAILABLE ? _fetch_SO_RCVBUFFORCE()
+			: 33;
+	private static final int SO_SNDBUFFORCE = NATIVE_AVAILABLE ? _fetch_SO_SNDBUFFORCE()
+			: 32;
+	private static final int SO_RXQ_OVFL = NATIVE_AVAILABLE ? _fetch_SO_RXQ_OVFL()
+			: 40;
+	private static final int SO_TIMESTAMP = NATIVE_AVAILABLE ? _fetch_SO_TIMESTAMP()
+			: 29;
+
+	/**
+	 * Sets an option on the SOL_SOCKET level
+	 * 
+	 * @param fd
+	 * @param op
+	 * @param value
+	 * @throws IOException
+	 */
+	private static native void _setSocketOption(final int fd, final int op,
+			final int value) throws IOException;
+
+	private static native int _getSocketOption(final int fd, final int op)
+			throws IOException;
+
+	/**
+	 * Opens a NETLINK_ROUTE socket subscribed to RTMGRP_LINK
+	 * 
+	 * @return
+	 * @throws IOException
+	 */
+	static native int _openNetlinkLink() throws IOException;
+
+	/**
+	 * Asks the kernel for a RTM_GETLINK dump of all links
+	 * 
+	 * @param fd
+	 * @throws IOException
+	 */
+	static native void _requestLinkDump(final int fd) throws IOException;
+
+	/**
+	 * Waits up to timeoutMs for one netlink datagram and reports every CAN
+	 * link message in it to registry._onLinkEvent, and the end of a dump to
+	 * registry._onLinkDumpDone
+	 * 
+	 * @param fd
+	 * @param registry
+	 * @param timeoutMs
+	 * @return number of CAN link messages, 0 on timeout
+	 * @throws IOException
+	 */
+	static native int _readLinkEvents(final int fd,
+			final CanInterfaceRegistry registry, final int timeoutMs)
+			throws IOException;
+
 	/**
 	 * ҪڶCan idһЩ趨ȻҲCan id
 	 * 
@@ -279,7 +339,7 @@ public final class CanSocket implements Closeable {
 	 * 
 	 */
 	public final static class CanId implements Cloneable {
-		private int _canId = 0;
+		int _canId = 0;
 
 		public static enum StatusBits {
 			ERR, EFFSFF, RTR
@@ -289,58 +349,77 @@ public final class CanSocket implements Closeable {
 			_canId = address;
 		}
 
+		/**
+		 * Orders identifiers the way bitwise arbitration does: base
+		 * identifier first, then RTR/SRR, IDE, extended identifier and RTR.
+		 * Lower wins.
+		 *
+		 * @param canId
+		 *            raw canid_t including the EFF/RTR flags
+		 * @return
+		 */
+		static long arbitrationKey(final int canId) {
+			final long rtr = (canId & CAN_RTR_FLAG) != 0 ? 1 : 0;
+			if ((canId & CAN_EFF_FLAG) != 0) {
+				final int id = canId & CAN_EFF_MASK;
+				return ((long) (id >>> 18) << 21) | (1L << 20) | (1L << 19)
+						| ((long) (id & 0x3FFFF) << 1) | rtr;
+			}
+			return ((long) (canId & CAN_SFF_MASK) << 21) | (rtr << 20);
+		}
+
 		public boolean isSetEFFSFF() {
-			return _isSetEFFSFF(_canId);
+			return (_canId & CAN_EFF_FLAG) != 0;
 		}
 
 		public boolean isSetRTR() {
-			return _isSetRTR(_canId);
+			return (_canId & CAN_RTR_FLAG) != 0;
 		}
 
 		public boolean isSetERR() {
-			return _isSetERR(_canId);
+			return (_canId & CAN_ERR_FLAG) != 0;
 		}
 
 		public CanId setEFFSFF() {
-			_canId = _setEFFSFF(_canId);
+			_canId |= CAN_EFF_FLAG;
 			return this;
 		}
 
 		public CanId setRTR() {
-			_canId = _setRTR(_canId);
+			_canId |= CAN_RTR_FLAG;
 			return this;
 		}
 
 		public CanId setERR() {
-			_canId = _setERR(_canId);
+			_canId |= CAN_ERR_FLAG;
 			return this;
 		}
 
 		public CanId clearEFFSFF() {
-			_canId = _clearEFFSFF(_canId);
+			_canId &= ~CAN_EFF_FLAG;
 			return this;
 		}
 
 		public CanId clearRTR() {
-			_canId = _clearRTR(_canId);
+			_canId &= ~CAN_RTR_FLAG;
 			return this;
 		}
 
 		public CanId clearERR() {
-			_canId = _clearERR(_canId);
+			_canId &= ~CAN_ERR_FLAG;
 			return this;
 		}
 
 		public int getCanId_SFF() {
-			return _getCANID_SFF(_canId);
+			return _canId & CAN_SFF_MASK;
 		}
 
 		public int getCanId_EFF() {
-			return _getCANID_EFF(_canId);
+			return _canId & CAN_EFF_MASK;
 		}
 
 		public int getCanId_ERR() {
-			return _getCANID_ERR(_canId);
+			return _canId & CAN_ERR_MASK;
 		}
 
 		@Override
@@ -400,15 +479,47 @@ public final class CanSocket implements Closeable {
 	 */
 	public final static class CanInterface implements Cloneable {
 		private final int _ifIndex;
-		private String _ifName;
+		volatile String _ifName;
+
+		/* link flags (IFF_*) of the canonical instance, kept by CanInterfaceRegistry */
+		volatile int _linkFlags;
 
 		public CanInterface(final CanSocket socket, final String ifName)
 				throws IOException {
-			this._ifIndex = _discoverInterfaceIndex(socket._fd, ifName);
+			this._ifIndex = valueOf(socket, ifName)._ifIndex;
 			this._ifName = ifName;
 		}
 
-		private CanInterface(int ifIndex, String ifName) {
+		/**
+		 * Returns the canonical instance for ifName. While the registry is
+		 * watching link events no ioctl is issued for known interfaces.
+		 * 
+		 * @param socket
+		 * @param ifName
+		 * @return
+		 * @throws IOException
+		 */
+		public static CanInterface valueOf(final CanSocket socket,
+				final String ifName) throws IOException {
+			final CanInterfaceRegistry registry = CanInterfaceRegistry
+					.getInstance();
+			/* the registry only knows kernel interfaces */
+			final CanInterface known = socket._transport instanceof NativeTransport ? registry
+					.lookup(ifName) : null;
+			if (known != null) {
+				return known;
+			}
+			final int ifIndex;
+			socket.acquire();
+			try {
+				ifIndex = socket._transport.discoverInterfaceIndex(ifName);
+			} finally {
+				socket.release();
+			}
+			return registry.intern(ifIndex, ifName);
+		}
+
+		CanInterface(int ifIndex, String ifName) {
 			this._ifIndex = ifIndex;
 			this._ifName = ifName;
 		}
@@ -439,8 +550,15 @@ public final class CanSocket implements Closeable {
 		 */
 		public String resolveIfName(final CanSocket socket) {
 			if (_ifName == null) {
+				final String known = CanInterfaceRegistry.getInstance()
+						.intern(_ifIndex)._ifName;
+				if (known != null) {
+					_ifName = known;
+					return known;
+				}
 				try {
-					_ifName = _discoverInterfaceName(socket._fd, _ifIndex);
+					_ifName = socket._transport
+							.discoverInterfaceName(_ifIndex);
 				} catch (IOException e) { /* EMPTY */
 				}
 			}
@@ -486,22 +604,35 @@ public final class CanSocket implements Closeable {
 		private final CanInterface canIf;
 		private final CanId canId;
 		private final byte[] data;
+		private final boolean ownMessage;
+		private final long timestamp;
 
 		public CanFrame(final CanInterface canIf, final CanId canId, byte[] data) {
+			this(canIf, canId, data, false, 0);
+		}
+
+		CanFrame(final CanInterface canIf, final CanId canId,
+				final byte[] data, final boolean ownMessage,
+				final long timestamp) {
 			this.canIf = canIf;
 			this.canId = canId;
 			this.data = data;
+			this.ownMessage = ownMessage;
+			this.timestamp = timestamp;
 		}
 
 		/* this constructor is used in native code */
 		@SuppressWarnings("unused")
-		private CanFrame(int canIf, int canid, byte[] data) {
+		private CanFrame(int canIf, int canid, byte[] data, boolean ownMessage,
+				long timestamp) {
 			if (data.length > 8) {
 				throw new IllegalArgumentException();
 			}
-			this.canIf = new CanInterface(canIf);
+			this.canIf = CanInterfaceRegistry.getInstance().intern(canIf);
 			this.canId = new CanId(canid);
 			this.data = data;
+			this.ownMessage = ownMessage;
+			this.timestamp = timestamp;
 		}
 
 		public CanId getCanId() {
@@ -516,6 +647,23 @@ public final class CanSocket implements Closeable {
 			return canIf;
 		}
 
+		/**
+		 * @return true if the receiving socket sent this frame itself, which
+		 *         is only reported with setRecvOwnMsgsMode(true). The echo
+		 *         arrives once the frame went out on the bus.
+		 */
+		public boolean isOwnMessage() {
+			return ownMessage;
+		}
+
+		/**
+		 * @return microseconds since the epoch at which the frame reached
+		 *         the socket layer, 0 unless setTimestampMode(true)
+		 */
+		public long getTimestamp() {
+			return timestamp;
+		}
+
 		@Override
 		public String toString() {
 			return "CanFrame [canIf=" + canIf + ", canId=" + canId + ", data="
@@ -525,7 +673,7 @@ public final class CanSocket implements Closeable {
 		@Override
 		protected Object clone() {
 			return new CanFrame(canIf, (CanId) canId.clone(), Arrays.copyOf(
-					data, data.length));
+					data, data.length), ownMessage, timestamp);
 		}
 	}
 
@@ -533,59 +681,691 @@ public final class CanSocket implements Closeable {
 		RAW, BCM
 	}
 
-	private final int _fd;
+	/**
+	 * Turns Thread.interrupt() of a thread waiting in recv into a wakeup of
+	 * the socket it waits on. One instance per thread, replaced once an
+	 * interrupt has consumed it.
+	 *
+	 * exit() synchronizes with a concurrent interrupt, so woke() is final
+	 * once it returned.
+	 */
+	private static final class Interruptor extends
+			AbstractInterruptibleChannel {
+		private static final ThreadLocal<Interruptor> CURRENT = new ThreadLocal<Interruptor>();
+
+		private volatile CanSocket _target;
+		private volatile boolean _woke;
+
+		static Interruptor enter(final CanSocket target) {
+			Interruptor interruptor = CURRENT.get();
+			if (interruptor == null || !interruptor.isOpen()) {
+				interruptor = new Interruptor();
+				CURRENT.set(interruptor);
+			}
+			interruptor._target = target;
+			interruptor.begin();
+			return interruptor;
+		}
+
+		/**
+		 * @return true if the waiting thread was interrupted
+		 */
+		boolean exit() {
+			_target = null;
+			try {
+				end(true);
+				return false;
+			} catch (ClosedByInterruptException e) {
+				return true;
+			} catch (IOException e) {
+				return false;
+			}
+		}
+
+		/**
+		 * @return true if the interrupt signalled the socket's wakeup
+		 */
+		boolean woke() {
+			return _woke;
+		}
+
+		@Override
+		protected void implCloseChannel() {
+			final CanSocket target = _target;
+			if (target != null) {
+				target.interruptWakeup();
+				_woke = true;
+			}
+		}
+	}
+
+	/**
+	 * The SocketCAN transport: a PF_CAN file descriptor plus the eventfd used
+	 * to wake up threads waiting in recv
+	 */
+	static final class NativeTransport implements CanTransport {
+		private final int _fd;
+		private final int _wakeFd;
+
+		/* last SO_RXQ_OVFL count, written by _recvFrame and read as a statistic */
+		private final int[] _drops = new int[1];
+
+		NativeTransport(final Mode mode) throws IOException {
+			if (!NATIVE_AVAILABLE) {
+				throw new IOException("libCanSocket is not available");
+			}
+			switch (mode) {
+			case BCM:
+				_fd = _openSocketBCM();
+				break;
+			case RAW:
+				_fd = _openSocketRAW();
+				break;
+			default:
+				throw new IllegalStateException("unkown mode " + mode);
+			}
+			try {
+				_wakeFd = _openWakeup();
+			} catch (IOException e) {
+				_close(_fd);
+				throw e;
+			}
+			try {
+				_setSocketOption(_fd, SO_RXQ_OVFL, 1);
+			} catch (IOException e) { /* kernels before 2.6.33 don't count drops */
+			}
+		}
+
+		int fd() {
+			return _fd;
+		}
+
+		int wakeFd() {
+			return _wakeFd;
+		}
+
+		@Override
+		public void bind(final int ifIndex) throws IOException {
+			_bindToSocket(_fd, ifIndex);
+		}
+
+		@Override
+		public boolean send(final int ifIndex, final int canId,
+				final byte[] data, final int offset, final int length)
+				throws IOException {
+			return _sendFrame(_fd, ifIndex, canId, data, offset, length);
+		}
+
+		@Override
+		public CanFrame recv(final int timeoutMs) throws IOException {
+			return _recvFrame(_fd, _wakeFd, timeoutMs, _drops);
+		}
+
+		@Override
+		public void wakeup() throws IOException {
+			_signalWakeup(_wakeFd);
+		}
+
+		@Override
+		public void clearWakeup() throws IOException {
+			_drainWakeup(_wakeFd);
+		}
+
+		@Override
+		public int discoverInterfaceIndex(final String ifName)
+				throws IOException {
+			return _discoverInterfaceIndex(_fd, ifName);
+		}
+
+		@Override
+		public String discoverInterfaceName(final int ifIndex)
+				throws IOException {
+			return _discoverInterfaceName(_fd, ifIndex);
+		}
+
+		@Override
+		public int getMtu(final String ifName) throws IOException {
+			return _fetchInterfaceMtu(_fd, ifName);
+		}
+
+		@Override
+		public void setLoopbackMode(final boolean on) throws IOException {
+			_setsockopt(_fd, CAN_RAW_LOOPBACK, on ? 1 : 0);
+		}
+
+		@Override
+		public boolean getLoopbackMode() throws IOException {
+			return _getsockopt(_fd, CAN_RAW_LOOPBACK) == 1;
+		}
+
+		@Override
+		public void setRecvOwnMsgsMode(final boolean on) throws IOException {
+			_setsockopt(_fd, CAN_RAW_RECV_OWN_MSGS, on ? 1 : 0);
+		}
+
+		@Override
+		public boolean getRecvOwnMsgsMode() throws IOException {
+			return _getsockopt(_fd, CAN_RAW_RECV_OWN_MSGS) == 1;
+		}
+
+		@Override
+		public void setTimestampMode(final boolean on) throws IOException {
+			_setSocketOption(_fd, SO_TIMESTAMP, on ? 1 : 0);
+		}
+
+		@Override
+		public boolean getTimestampMode() throws IOException {
+			return _getSocketOption(_fd, SO_TIMESTAMP) != 0;
+		}
+
+		@Override
+		public void setBufferSize(final boolean receive, final int bytes,
+				final boolean force) throws IOException {
+			final int op;
+			if (receive) {
+				op = force ? SO_RCVBUFFORCE : SO_RCVBUF;
+			} else {
+				op = force ? SO_SNDBUFFORCE : SO_SNDBUF;
+			}
+			_setSocketOption(_fd, op, bytes);
+		}
+
+		@Override
+		public int getBufferSize(final boolean receive) throws IOException {
+			return _getSocketOption(_fd, receive ? SO_RCVBUF : SO_SNDBUF);
+		}
+
+		@Override
+		public long getRxDropped() {
+			return _drops[0] & 0xFFFFFFFFL;
+		}
+
+		@Override
+		public void close() throws IOException {
+			try {
+				_close(_fd);
+			} finally {
+				_close(_wakeFd);
+			}
+		}
+	}
+
+	/* set in _state once close() was called, the low bits count threads using _transport */
+	private static final int CLOSED = 0x80000000;
+
+	private final CanTransport _transport;
+	private final AtomicInteger _state = new AtomicInteger();
+	/* interrupt wakeups signalled but not yet consumed, guarded by _wakeLock */
+	private int _wakeups;
+	private final Object _wakeLock = new Object();
 	private final Mode _mode;
 	private CanInterface _boundTo;
+	private FrameReader _reader;
 
 	public CanSocket(Mode mode) throws IOException {
-		switch (mode) {
-		case BCM:
-			_fd = _openSocketBCM();
-			break;
-		case RAW:
-			_fd = _openSocketRAW();
-			break;
-		default:
-			throw new IllegalStateException("unkown mode " + mode);
-		}
+		this(new NativeTransport(mode), mode);
+	}
+
+	/**
+	 * Creates a socket on top of another transport, e.g. one attached to a
+	 * VirtualCanBus
+	 * 
+	 * @param transport
+	 */
+	public CanSocket(final CanTransport transport) {
+		this(transport, Mode.RAW);
+	}
+
+	private CanSocket(final CanTransport transport, final Mode mode) {
+		this._transport = transport;
 		this._mode = mode;
 	}
 
+	void acquire() throws IOException {
+		for (;;) {
+			final int state = _state.get();
+			if ((state & CLOSED) != 0) {
+				throw new IOException("socket closed");
+			}
+			if (_state.compareAndSet(state, state + 1)) {
+				return;
+			}
+		}
+	}
+
+	void release() throws IOException {
+		if (_state.decrementAndGet() == CLOSED) {
+			_transport.close();
+		}
+	}
+
+	boolean isClosed() {
+		return (_state.get() & CLOSED) != 0;
+	}
+
+	/**
+	 * @return the SocketCAN transport or null for other transports
+	 */
+	NativeTransport nativeTransport() {
+		return _transport instanceof NativeTransport ? (NativeTransport) _transport
+				: null;
+	}
+
+	private void wakeup() {
+		try {
+			_transport.wakeup();
+		} catch (IOException e) { /* EMPTY */
+		}
+	}
+
+	/**
+	 * Wakes up all waiters on behalf of one interrupted thread, which
+	 * consumes the wakeup with consumeWakeup()
+	 */
+	private void interruptWakeup() {
+		synchronized (_wakeLock) {
+			_wakeups++;
+			wakeup();
+		}
+	}
+
+	/**
+	 * Clears the wakeup once no interrupted thread needs it anymore, so an
+	 * interrupt of one waiter never swallows that of another
+	 */
+	private void consumeWakeup() throws IOException {
+		synchronized (_wakeLock) {
+			if (--_wakeups > 0) {
+				return;
+			}
+			_transport.clearWakeup();
+			/* close() may have raced with the interrupt */
+			if (isClosed()) {
+				wakeup();
+			}
+			_wakeLock.notifyAll();
+		}
+	}
+
+	/**
+	 * Keeps a waiter that was not interrupted from spinning on a wakeup
+	 * meant for another thread, until that thread consumed it; also used by
+	 * ShardedReaderPool, which polls the wakeup to notice close()
+	 *
+	 * @param deadline
+	 *            System.nanoTime() to give up at
+	 * @param timed
+	 *            false waits without limit
+	 */
+	void awaitWakeupConsumed(final long deadline, final boolean timed) {
+		boolean interrupted = false;
+		synchronized (_wakeLock) {
+			while (_wakeups > 0 && !isClosed()) {
+				long waitMs = 0;
+				if (timed) {
+					final long remaining = deadline - System.nanoTime();
+					if (remaining <= 0) {
+						break;
+					}
+					waitMs = TimeUnit.NANOSECONDS.toMillis(remaining + 999999);
+				}
+				try {
+					_wakeLock.wait(waitMs);
+				} catch (InterruptedException e) {
+					interrupted = true;
+					break;
+				}
+			}
+		}
+		/* outside the lock, the interrupt runs our Interruptor */
+		if (interrupted) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
 	public void bind(CanInterface canInterface) throws IOException {
-		_bindToSocket(_fd, canInterface._ifIndex);
+		acquire();
+		try {
+			_transport.bind(canInterface._ifIndex);
+		} finally {
+			release();
+		}
 		this._boundTo = canInterface;
 	}
 
 	public void send(CanFrame frame) throws IOException {
-		_sendFrame(_fd, frame.canIf._ifIndex, frame.canId._canId, frame.data);
+		send(frame.canIf, frame.canId._canId, frame.data, 0, frame.data.length);
+	}
+
+	/**
+	 * Sends data[offset, offset + length) as one frame without building a
+	 * CanFrame; the array may be reused as soon as this returns
+	 * 
+	 * @param canIf
+	 * @param canId
+	 *            raw canid_t including the EFF/RTR/ERR flags
+	 * @param data
+	 * @param offset
+	 * @param length
+	 *            at most 8
+	 * @throws IOException
+	 *             also when the device queue is full (ENOBUFS)
+	 */
+	public void send(final CanInterface canIf, final int canId,
+			final byte[] data, final int offset, final int length)
+			throws IOException {
+		if (!trySend(canIf, canId, data, offset, length)) {
+			throw new IOException("No buffer space available");
+		}
 	}
 
+	/**
+	 * Like send() but reports a full device queue by returning false, so
+	 * callers can back off and retry
+	 * 
+	 * @return false if the frame was not queued because of ENOBUFS
+	 * @throws IOException
+	 */
+	public boolean trySend(final CanInterface canIf, final int canId,
+			final byte[] data, final int offset, final int length)
+			throws IOException {
+		acquire();
+		try {
+			return _transport.send(canIf._ifIndex, canId, data, offset,
+					length);
+		} finally {
+			release();
+		}
+	}
+
+	/**
+	 * Blocks until a frame arrives. close() from another thread makes it
+	 * throw IOException, Thread.interrupt() makes it throw
+	 * InterruptedIOException with the interrupt status left set.
+	 * 
+	 * @return
+	 * @throws IOException
+	 */
 	public CanFrame recv() throws IOException {
-		return _recvFrame(_fd);
+		return recv(-1, TimeUnit.NANOSECONDS);
 	}
 
+	/**
+	 * Like recv() but gives up after timeout, a negative timeout waits
+	 * without limit
+	 * 
+	 * @param timeout
+	 * @param unit
+	 * @return the frame or null on timeout
+	 * @throws IOException
+	 */
+	public CanFrame recv(final long timeout, final TimeUnit unit)
+			throws IOException {
+		acquire();
+		try {
+			final CanFrame frame = _transport.recv(0);
+			if (frame != null || timeout == 0) {
+				return frame;
+			}
+			return awaitFrame(timeout < 0 ? -1 : unit.toNanos(timeout));
+		} finally {
+			release();
+		}
+	}
+
+	/**
+	 * Returns a queued frame without ever blocking, for callers that
+	 * multiplex sockets themselves
+	 * 
+	 * @return the frame or null if none is queued
+	 * @throws IOException
+	 */
+	public CanFrame tryRecv() throws IOException {
+		return recv(0, TimeUnit.NANOSECONDS);
+	}
+
+	private CanFrame awaitFrame(final long timeoutNanos) throws IOException {
+		final long deadline = System.nanoTime() + timeoutNanos;
+		final Interruptor interruptor = Interruptor.enter(this);
+		CanFrame frame = null;
+		boolean interrupted = false;
+		try {
+			while (frame == null) {
+				if (isClosed()) {
+					throw new IOException("socket closed");
+				}
+				if (Thread.currentThread().isInterrupted()) {
+					interrupted = true;
+					break;
+				}
+				int timeoutMs = -1;
+				if (timeoutNanos >= 0) {
+					final long remaining = deadline - System.nanoTime();
+					if (remaining <= 0) {
+						break;
+					}
+					timeoutMs = (int) Math.min(Integer.MAX_VALUE,
+							TimeUnit.NANOSECONDS.toMillis(remaining + 999999));
+				}
+				frame = _transport.recv(timeoutMs);
+				if (frame == null) {
+					awaitWakeupConsumed(deadline, timeoutNanos >= 0);
+				}
+			}
+		} finally {
+			interrupted |= interruptor.exit();
+			if (interruptor.woke()) {
+				consumeWakeup();
+			}
+		}
+		if (frame == null && interrupted) {
+			throw new InterruptedIOException("recv interrupted");
+		}
+		return frame;
+	}
+
+	/**
+	 * Received frames as a publisher with DEFAULT_BUFFER_SIZE items of
+	 * buffer per subscription, dropping the oldest on overflow
+	 * 
+	 * @return
+	 */
+	public FramePublisher<CanFrame> frames() {
+		return frames(FramePublisher.DEFAULT_BUFFER_SIZE,
+				FramePublisher.OverflowPolicy.DROP_OLDEST);
+	}
+
+	/**
+	 * Received frames as a publisher. All publishers of this socket share
+	 * one reader thread, which runs while at least one subscription is
+	 * active; don't call recv() concurrently.
+	 * 
+	 * @param bufferSize
+	 *            items buffered per subscription beyond its demand
+	 * @param policy
+	 * @return
+	 */
+	public synchronized FramePublisher<CanFrame> frames(final int bufferSize,
+			final FramePublisher.OverflowPolicy policy) {
+		if (_reader == null) {
+			_reader = new FrameReader(this);
+		}
+		return new FramePublisher<CanFrame>(_reader, bufferSize, policy);
+	}
+
+	/**
+	 * Closes the socket and wakes up all threads waiting in recv. The
+	 * transport is released once the last of them has returned.
+	 */
 	@Override
 	public void close() throws IOException {
-		_close(_fd);
+		for (;;) {
+			final int state = _state.get();
+			if ((state & CLOSED) != 0) {
+				return;
+			}
+			if (_state.compareAndSet(state, (state + 1) | CLOSED)) {
+				break;
+			}
+		}
+		wakeup();
+		synchronized (_wakeLock) {
+			_wakeLock.notifyAll();
+		}
+		release();
 	}
 
 	public int getMtu(final String canif) throws IOException {
-		return _fetchInterfaceMtu(_fd, canif);
+		acquire();
+		try {
+			return _transport.getMtu(canif);
+		} finally {
+			release();
+		}
 	}
 
 	public void setLoopbackMode(final boolean on) throws IOException {
-		_setsockopt(_fd, CAN_RAW_LOOPBACK, on ? 1 : 0);
+		acquire();
+		try {
+			_transport.setLoopbackMode(on);
+		} finally {
+			release();
+		}
 	}
 
 	public boolean getLoopbackMode() throws IOException {
-		return _getsockopt(_fd, CAN_RAW_LOOPBACK) == 1;
+		acquire();
+		try {
+			return _transport.getLoopbackMode();
+		} finally {
+			release();
+		}
 	}
 
 	public void setRecvOwnMsgsMode(final boolean on) throws IOException {
-		_setsockopt(_fd, CAN_RAW_RECV_OWN_MSGS, on ? 1 : 0);
+		acquire();
+		try {
+			_transport.setRecvOwnMsgsMode(on);
+		} finally {
+			release();
+		}
 	}
 
 	public boolean getRecvOwnMsgsMode() throws IOException {
-		return _getsockopt(_fd, CAN_RAW_RECV_OWN_MSGS) == 1;
+		acquire();
+		try {
+			return _transport.getRecvOwnMsgsMode();
+		} finally {
+			release();
+		}
+	}
+
+	/**
+	 * Has the kernel stamp received frames with their arrival time
+	 * (SO_TIMESTAMP), see CanFrame.getTimestamp()
+	 * 
+	 * @param on
+	 * @throws IOException
+	 */
+	public void setTimestampMode(final boolean on) throws IOException {
+		acquire();
+		try {
+			_transport.setTimestampMode(on);
+		} finally {
+			release();
+		}
+	}
+
+	public boolean getTimestampMode() throws IOException {
+		acquire();
+		try {
+			return _transport.getTimestampMode();
+		} finally {
+			release();
+		}
+	}
+
+	/**
+	 * Sets SO_RCVBUF. The kernel doubles the value for its bookkeeping and
+	 * caps it at net.core.rmem_max.
+	 * 
+	 * @param bytes
+	 * @throws IOException
+	 */
+	public void setReceiveBufferSize(final int bytes) throws IOException {
+		setReceiveBufferSize(bytes, false);
+	}
+
+	/**
+	 * @param bytes
+	 * @param force
+	 *            use SO_RCVBUFFORCE, which ignores rmem_max but needs
+	 *            CAP_NET_ADMIN
+	 * @throws IOException
+	 */
+	public void setReceiveBufferSize(final int bytes, final boolean force)
+			throws IOException {
+		acquire();
+		try {
+			_transport.setBufferSize(true, bytes, force);
+		} finally {
+			release();
+		}
+	}
+
+	public int getReceiveBufferSize() throws IOException {
+		acquire();
+		try {
+			return _transport.getBufferSize(true);
+		} finally {
+			release();
+		}
+	}
+
+	/**
+	 * Sets SO_SNDBUF, capped at net.core.wmem_max
+	 * 
+	 * @param bytes
+	 * @throws IOException
+	 */
+	public void setSendBufferSize(final int bytes) throws IOException {
+		setSendBufferSize(bytes, false);
+	}
+
+	/**
+	 * @param bytes
+	 * @param force
+	 *            use SO_SNDBUFFORCE, which needs CAP_NET_ADMIN
+	 * @throws IOException
+	 */
+	public void setSendBufferSize(final int bytes, final boolean force)
+			throws IOException {
+		acquire();
+		try {
+			_transport.setBufferSize(false, bytes, force);
+		} finally {
+			release();
+		}
+	}
+
+	public int getSendBufferSize() throws IOException {
+		acquire();
+		try {
+			return _transport.getBufferSize(false);
+		} finally {
+			release();
+		}
+	}
+
+	/**
+	 * Frames lost because the receive buffer was full. The kernel reports
+	 * the count (SO_RXQ_OVFL) along with received frames, so it is as
+	 * recent as the last frame read.
+	 * 
+	 * @return
+	 * @throws IOException
+	 */
+	public long getRxDropped() throws IOException {
+		return _transport.getRxDropped();
 	}
 }
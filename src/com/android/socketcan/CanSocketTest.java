@@ -1,11 +1,20 @@
 package com.android.socketcan;
 
+import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.lang.annotation.ElementType;
 import java.lang.annotation.Retention;
 import java.lang.annotation.RetentionPolicy;
 import java.lang.annotation.Target;
 import java.lang.reflect.Method;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import android.util.Log;
 
@@ -101,6 +110,22 @@ public class CanSocketTest {
         new CanInterface(socket, CAN_INTERFACE);
     }
     
+    @Test
+    public void testInterfaceRegistry() throws IOException {
+        final CanSocket socket = new CanSocket(Mode.RAW);
+        final CanInterfaceRegistry registry = CanInterfaceRegistry.getInstance();
+        final CanInterface canIf = CanInterface.valueOf(socket, CAN_INTERFACE);
+        assert canIf == registry.intern(canIf.getInterfaceIndex());
+        assert canIf == CanInterface.valueOf(socket, CAN_INTERFACE);
+        registry.startWatching();
+        try {
+            assert canIf == CanInterface.valueOf(socket, CAN_INTERFACE);
+        } finally {
+            registry.stopWatching();
+            socket.close();
+        }
+    }
+
     @Test
     public void testBindInterface() throws IOException {
         final CanSocket socket = new CanSocket(Mode.RAW);
@@ -132,6 +157,997 @@ public class CanSocketTest {
         socket.recv();
     }
     
+    @Test
+    public void testRecvTimeout() throws IOException {
+        final CanSocket socket = new CanSocket(Mode.RAW);
+        try {
+            /* unbound raw sockets never receive anything */
+            assert socket.tryRecv() == null;
+            final long start = System.nanoTime();
+            assert socket.recv(50, TimeUnit.MILLISECONDS) == null;
+            assert System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(50);
+        } finally {
+            socket.close();
+        }
+    }
+
+    @Test
+    public void testCloseWakesRecv() throws Exception {
+        final CanSocket socket = new CanSocket(Mode.RAW);
+        final Thread reader = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    socket.recv();
+                } catch (IOException e) { /* EMPTY */
+                }
+            }
+        };
+        reader.start();
+        Thread.sleep(100);
+        socket.close();
+        reader.join(1000);
+        assert !reader.isAlive();
+    }
+
+    @Test
+    public void testInterruptWakesRecv() throws Exception {
+        final CanSocket socket = new CanSocket(Mode.RAW);
+        final boolean[] interrupted = new boolean[1];
+        final Thread reader = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    socket.recv();
+                } catch (InterruptedIOException e) {
+                    interrupted[0] = true;
+                } catch (IOException e) { /* EMPTY */
+                }
+            }
+        };
+        reader.start();
+        Thread.sleep(100);
+        reader.interrupt();
+        reader.join(1000);
+        assert !reader.isAlive();
+        assert interrupted[0];
+        socket.close();
+    }
+
+    @Test
+    public void testInterruptWakesOnlyItsRecv() throws Exception {
+        final VirtualCanBus bus = new VirtualCanBus("vcan-intr");
+        final CanSocket socket = bus.openSocket();
+        final CanSocket sender = bus.openSocket();
+        try {
+            for (int round = 0; round < 50; round++) {
+                final AtomicInteger interrupted = new AtomicInteger();
+                final Thread[] readers = new Thread[3];
+                for (int i = 0; i < readers.length; i++) {
+                    readers[i] = new Thread() {
+                        @Override
+                        public void run() {
+                            try {
+                                socket.recv();
+                            } catch (InterruptedIOException e) {
+                                interrupted.incrementAndGet();
+                            } catch (IOException e) { /* EMPTY */
+                            }
+                        }
+                    };
+                    readers[i].start();
+                }
+                Thread.sleep(2);
+                /* neither interrupt may swallow the other */
+                readers[0].interrupt();
+                readers[1].interrupt();
+                readers[0].join(1000);
+                readers[1].join(1000);
+                assert !readers[0].isAlive() && !readers[1].isAlive();
+                assert interrupted.get() == 2;
+                /* the third reader still waits for a frame */
+                assert readers[2].isAlive();
+                sender.send(bus.getInterface(), 0x100, new byte[0], 0, 0);
+                readers[2].join(1000);
+                assert !readers[2].isAlive();
+                assert interrupted.get() == 2;
+            }
+        } finally {
+            socket.close();
+            sender.close();
+            bus.close();
+        }
+    }
+
+    @Test
+    public void testFrames() throws IOException {
+        final CanSocket socket = new CanSocket(Mode.RAW);
+        final CanInterface canif = new CanInterface(socket, CAN_INTERFACE);
+        socket.bind(canif);
+        socket.setRecvOwnMsgsMode(true);
+        final FramePublisher.BlockingIterator<byte[]> payloads = socket.frames()
+                .filter(new FramePublisher.Predicate<CanFrame>() {
+                    @Override
+                    public boolean test(CanFrame frame) {
+                        return frame.getCanId().getCanId_SFF() == 0x123;
+                    }
+                })
+                .map(new FramePublisher.Function<CanFrame, byte[]>() {
+                    @Override
+                    public byte[] apply(CanFrame frame) {
+                        return frame.getData();
+                    }
+                })
+                .iterator();
+        try {
+            socket.send(new CanFrame(canif, new CanId(0x123), new byte[] {4, 2}));
+            assert payloads.hasNext();
+            assert payloads.next()[1] == 2;
+        } finally {
+            payloads.close();
+            socket.close();
+        }
+    }
+
+    @Test
+    public void testFramesSubscriberFailure() throws IOException,
+            InterruptedException {
+        final VirtualCanBus bus = new VirtualCanBus("vcan-pub");
+        final CanSocket rx = bus.openSocket();
+        final CanSocket tx = bus.openSocket();
+        final CanInterface canif = bus.getInterface();
+        try {
+            /* a throwing subscriber is cancelled, the others carry on */
+            final Throwable[] error = new Throwable[1];
+            final CountDownLatch failed = new CountDownLatch(1);
+            rx.frames().subscribe(new FramePublisher.Subscriber<CanFrame>() {
+                @Override
+                public void onSubscribe(FramePublisher.Subscription s) {
+                    s.request(Long.MAX_VALUE);
+                }
+
+                @Override
+                public void onNext(CanFrame item) {
+                    throw new IllegalStateException("subscriber bug");
+                }
+
+                @Override
+                public void onError(Throwable e) {
+                    error[0] = e;
+                    failed.countDown();
+                }
+
+                @Override
+                public void onComplete() {
+                }
+            });
+            final FramePublisher.BlockingIterator<CanFrame> frames = rx
+                    .frames().iterator();
+            tx.send(canif, 0x100, new byte[0], 0, 0);
+            tx.send(canif, 0x101, new byte[0], 0, 0);
+            assert failed.await(1, TimeUnit.SECONDS);
+            assert error[0] instanceof IllegalStateException;
+            assert frames.next().getCanId().getCanId_SFF() == 0x100;
+            assert frames.next().getCanId().getCanId_SFF() == 0x101;
+            frames.close();
+
+            /* resubscribing from a callback on the reader thread */
+            final FramePublisher<CanFrame> publisher = rx.frames();
+            final CountDownLatch cancelled = new CountDownLatch(1);
+            final CountDownLatch resubscribed = new CountDownLatch(1);
+            final FramePublisher.Subscriber<CanFrame> second = new FramePublisher.Subscriber<CanFrame>() {
+                @Override
+                public void onSubscribe(FramePublisher.Subscription s) {
+                    s.request(Long.MAX_VALUE);
+                }
+
+                @Override
+                public void onNext(CanFrame item) {
+                    resubscribed.countDown();
+                }
+
+                @Override
+                public void onError(Throwable e) {
+                }
+
+                @Override
+                public void onComplete() {
+                }
+            };
+            publisher.subscribe(new FramePublisher.Subscriber<CanFrame>() {
+                private FramePublisher.Subscription _subscription;
+
+                @Override
+                public void onSubscribe(FramePublisher.Subscription s) {
+                    _subscription = s;
+                    s.request(1);
+                }
+
+                @Override
+                public void onNext(CanFrame item) {
+                    _subscription.cancel();
+                    publisher.subscribe(second);
+                    cancelled.countDown();
+                }
+
+                @Override
+                public void onError(Throwable e) {
+                }
+
+                @Override
+                public void onComplete() {
+                }
+            });
+            tx.send(canif, 0x200, new byte[0], 0, 0);
+            assert cancelled.await(1, TimeUnit.SECONDS);
+            tx.send(canif, 0x201, new byte[0], 0, 0);
+            assert resubscribed.await(1, TimeUnit.SECONDS);
+        } finally {
+            rx.close();
+            tx.close();
+            bus.close();
+        }
+    }
+
+    @Test
+    public void testVirtualBusFanOut() throws IOException {
+        final VirtualCanBus bus = new VirtualCanBus("vcan-test");
+        final CanSocket sender = bus.openSocket();
+        final CanSocket rx1 = bus.openSocket();
+        final CanSocket rx2 = bus.openSocket();
+        try {
+            final CanInterface canif = new CanInterface(sender, "vcan-test");
+            sender.bind(canif);
+            sender.send(new CanFrame(canif, new CanId(0x10), new byte[] {1, 2, 3}));
+            assert rx1.recv(1, TimeUnit.SECONDS).getData()[2] == 3;
+            assert rx2.recv(1, TimeUnit.SECONDS).getCanId().getCanId_SFF() == 0x10;
+            /* CAN_RAW_RECV_OWN_MSGS is off by default */
+            assert sender.tryRecv() == null;
+            sender.setRecvOwnMsgsMode(true);
+            sender.send(new CanFrame(canif, new CanId(0x11), new byte[0]));
+            assert sender.recv(1, TimeUnit.SECONDS) != null;
+        } finally {
+            sender.close();
+            rx1.close();
+            rx2.close();
+            bus.close();
+        }
+    }
+
+    @Test
+    public void testVirtualBusArbitration() throws IOException {
+        /* 10 kbit/s: a 8 byte frame keeps the bus busy for about 11 ms */
+        final VirtualCanBus bus = new VirtualCanBus("vcan-arb", 10000,
+                VirtualCanBus.DEFAULT_QUEUE_SIZE);
+        final CanSocket low = bus.openSocket();
+        final CanSocket high = bus.openSocket();
+        final CanSocket rx = bus.openSocket();
+        try {
+            final CanInterface canif = bus.getInterface();
+            final byte[] data = new byte[8];
+            low.send(new CanFrame(canif, new CanId(0x700), data));
+            /* let the wire thread take 0x700 before the others compete */
+            final long deadline = System.currentTimeMillis() + 1000;
+            while (bus.getFramesStarted() == 0
+                    && System.currentTimeMillis() < deadline) {
+                Thread.yield();
+            }
+            assert bus.getFramesStarted() == 1;
+            low.send(new CanFrame(canif, new CanId(0x300), data));
+            low.send(new CanFrame(canif, new CanId(0x301), data));
+            high.send(new CanFrame(canif, new CanId(0x100), data));
+            /* while 0x700 is on the wire each node offers its queue head */
+            final int[] expected = {0x700, 0x100, 0x300, 0x301};
+            for (int id : expected) {
+                assert rx.recv(1, TimeUnit.SECONDS).getCanId().getCanId_SFF() == id;
+            }
+        } finally {
+            low.close();
+            high.close();
+            rx.close();
+            bus.close();
+        }
+    }
+
+    /**
+     * Throughput, round trip and paced rate of the virtual bus. The numbers
+     * go to the log; only what a loaded host can't break is asserted.
+     */
+    @Test
+    public void testVirtualBusBenchmark() throws IOException,
+            InterruptedException {
+        final int frames = 50000;
+        final VirtualCanBus fast = new VirtualCanBus("vcan-bench", 0, 1 << 16);
+        final CanSocket tx = fast.openSocket();
+        final CanSocket echo = fast.openSocket();
+        final AtomicInteger received = new AtomicInteger();
+        final Thread[] readers = new Thread[2];
+        try {
+            for (int i = 0; i < readers.length; i++) {
+                final CanSocket rx = fast.openSocket();
+                readers[i] = new Thread() {
+                    @Override
+                    public void run() {
+                        try {
+                            CanFrame frame;
+                            while ((frame = rx.recv(1, TimeUnit.SECONDS)) != null) {
+                                received.incrementAndGet();
+                                if (frame.getCanId().getCanId_SFF() == 0x7FF) {
+                                    break;
+                                }
+                            }
+                        } catch (IOException e) { /* EMPTY */
+                        } finally {
+                            try {
+                                rx.close();
+                            } catch (IOException e) { /* EMPTY */
+                            }
+                        }
+                    }
+                };
+                readers[i].start();
+            }
+            final CanInterface canif = fast.getInterface();
+            final byte[] data = new byte[8];
+            final long start = System.nanoTime();
+            for (int i = 0; i < frames - 1; i++) {
+                tx.send(canif, 0x100, data, 0, 8);
+            }
+            tx.send(canif, 0x7FF, data, 0, 8);
+            for (Thread reader : readers) {
+                reader.join(10000);
+            }
+            final long elapsed = System.nanoTime() - start;
+            /* the echo socket doesn't read yet, but its queue holds them all */
+            final long lost = fast.getFramesDropped();
+            Log.d(TAG, "fan-out: " + frames * 1000000000L / elapsed
+                    + " frames/s to " + readers.length + " readers, " + lost
+                    + " dropped");
+            assert received.get() + lost == (long) frames * readers.length;
+
+            /* round trips through a second socket that answers each frame */
+            final Thread responder = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        while (echo.recv() != null) {
+                            echo.send(canif, 0x200, data, 0, 8);
+                        }
+                    } catch (IOException e) { /* EMPTY */
+                    }
+                }
+            };
+            while (echo.tryRecv() != null) { /* leftovers of the fan-out */
+            }
+            responder.start();
+            final LatencyHistogram roundTrips = new LatencyHistogram();
+            for (int i = 0; i < 2000; i++) {
+                final long sent = System.nanoTime();
+                tx.send(canif, 0x100, data, 0, 8);
+                CanFrame frame;
+                do {
+                    frame = tx.recv(1, TimeUnit.SECONDS);
+                    assert frame != null;
+                } while (frame.getCanId().getCanId_SFF() != 0x200);
+                roundTrips.record(System.nanoTime() - sent);
+            }
+            Log.d(TAG, "round trip: " + roundTrips);
+            assert roundTrips.getCount() == 2000;
+        } finally {
+            tx.close();
+            echo.close();
+            fast.close();
+        }
+
+        /* a paced bus can't beat the nominal frame time */
+        final VirtualCanBus paced = new VirtualCanBus("vcan-paced", 500000,
+                VirtualCanBus.DEFAULT_QUEUE_SIZE);
+        final CanSocket sender = paced.openSocket();
+        final CanSocket rx = paced.openSocket();
+        try {
+            final byte[] data = new byte[8];
+            final long start = System.nanoTime();
+            for (int i = 0; i < 500; i++) {
+                sender.send(paced.getInterface(), 0x100, data, 0, 8);
+            }
+            for (int i = 0; i < 500; i++) {
+                assert rx.recv(2, TimeUnit.SECONDS) != null;
+            }
+            final long elapsed = System.nanoTime() - start;
+            final long nominal = 500 * Pacer.frameNanos(false, 8, 500000);
+            Log.d(TAG, "paced: " + 500 * 1000000000L / elapsed
+                    + " frames/s, nominal " + 500 * 1000000000L / nominal);
+            assert elapsed >= nominal * 9 / 10;
+        } finally {
+            sender.close();
+            rx.close();
+            paced.close();
+        }
+    }
+
+    @Test
+    public void testBulkSender() throws IOException {
+        final VirtualCanBus bus = new VirtualCanBus("vcan-bulk");
+        final CanSocket sender = bus.openSocket();
+        final CanSocket rx = bus.openSocket();
+        try {
+            final byte[] data = new byte[1001];
+            for (int i = 0; i < data.length; i++) {
+                data[i] = (byte) i;
+            }
+            final BulkSender.Stats stats = new BulkSender(sender,
+                    bus.getInterface(), new CanId(0x7)).send(
+                    new java.io.ByteArrayInputStream(data));
+            assert stats.getFrames() == 126;
+            assert stats.getBytes() == data.length;
+            int received = 0;
+            CanFrame frame;
+            while ((frame = rx.tryRecv()) != null) {
+                for (byte b : frame.getData()) {
+                    assert b == data[received++];
+                }
+            }
+            assert received == data.length;
+        } finally {
+            sender.close();
+            rx.close();
+            bus.close();
+        }
+    }
+
+    @Test
+    public void testShardedReaderPool() throws IOException,
+            InterruptedException {
+        final VirtualCanBus bus = new VirtualCanBus("vcan-pool");
+        final CanSocket sender = bus.openSocket();
+        final CanSocket[] sockets = new CanSocket[3];
+        for (int i = 0; i < sockets.length; i++) {
+            sockets[i] = bus.openSocket();
+        }
+        final AtomicInteger frames = new AtomicInteger();
+        final CountDownLatch detached = new CountDownLatch(1);
+        final ShardedReaderPool pool = new ShardedReaderPool(sockets,
+                new int[] { -1, -1 }, new ShardedReaderPool.FrameHandler() {
+                    @Override
+                    public void onFrame(CanSocket socket, CanFrame frame) {
+                        frames.incrementAndGet();
+                    }
+
+                    @Override
+                    public void onDetached(CanSocket socket, IOException error) {
+                        assert socket == sockets[2] && error == null;
+                        detached.countDown();
+                    }
+                });
+        try {
+            assert pool.getShardCount() == 2;
+            pool.start();
+            final byte[] data = new byte[8];
+            for (int i = 0; i < 100; i++) {
+                sender.send(bus.getInterface(), i, data, 0, data.length);
+            }
+            final long deadline = System.currentTimeMillis() + 2000;
+            while (frames.get() < 300 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            assert frames.get() == 300;
+            assert pool.getShardStats(0).getFrames() == 200;
+            assert pool.getShardStats(1).getFrames() == 100;
+            sockets[2].close();
+            assert detached.await(2, TimeUnit.SECONDS);
+        } finally {
+            pool.close();
+            for (CanSocket socket : sockets) {
+                socket.close();
+            }
+            sender.close();
+            bus.close();
+        }
+    }
+
+    @Test
+    public void testTransmitScheduler() throws IOException,
+            InterruptedException {
+        /* about 0.9 ms per frame */
+        final VirtualCanBus bus = new VirtualCanBus("vcan-sched", 125000,
+                VirtualCanBus.DEFAULT_QUEUE_SIZE);
+        final CanSocket rx = bus.openSocket();
+        final TransmitScheduler scheduler = new TransmitScheduler(
+                bus.openSocket(), bus.getInterface()).setInFlightWindow(2);
+        try {
+            scheduler.start();
+            final byte[] data = new byte[8];
+            for (int i = 0; i < 20; i++) {
+                assert scheduler.submit(new CanId(0x700), data);
+            }
+            assert scheduler.submit(new CanId(0x7FF), data, 1,
+                    TimeUnit.MILLISECONDS);
+            assert scheduler.submit(new CanId(0x10), data);
+            int position = -1;
+            for (int i = 0; i < 21; i++) {
+                final CanFrame frame = rx.recv(1, TimeUnit.SECONDS);
+                assert frame != null;
+                assert frame.getCanId().getCanId_SFF() != 0x7FF;
+                if (frame.getCanId().getCanId_SFF() == 0x10) {
+                    position = i;
+                }
+            }
+            /* only the window was ahead of the urgent frame */
+            assert position >= 0 && position <= 3;
+            assert rx.recv(50, TimeUnit.MILLISECONDS) == null;
+            assert scheduler.getSent() == 21;
+            assert scheduler.getExpired() == 1;
+            assert scheduler.getEchoTimeouts() == 0;
+
+            /* a failing send stops the scheduler instead of queueing on */
+            bus.close();
+            assert scheduler.submit(new CanId(0x20), data);
+            final long deadline = System.currentTimeMillis() + 1000;
+            while (scheduler.getFailure() == null
+                    && System.currentTimeMillis() < deadline) {
+                Thread.sleep(5);
+            }
+            assert scheduler.getFailure() instanceof IOException;
+            try {
+                scheduler.submit(new CanId(0x20), data);
+                assert false;
+            } catch (IllegalStateException e) {
+                assert e.getCause() == scheduler.getFailure();
+            }
+        } finally {
+            scheduler.close();
+            rx.close();
+            bus.close();
+        }
+
+        /* an unpaced bus echoes inside trySend(), the window must not leak */
+        final VirtualCanBus fast = new VirtualCanBus("vcan-sched-fast");
+        final CanSocket fastRx = fast.openSocket();
+        final TransmitScheduler windowed = new TransmitScheduler(
+                fast.openSocket(), fast.getInterface()).setInFlightWindow(1);
+        try {
+            windowed.start();
+            final byte[] data = new byte[8];
+            for (int i = 0; i < 200; i++) {
+                assert windowed.submit(new CanId(0x100), data);
+            }
+            for (int i = 0; i < 200; i++) {
+                assert fastRx.recv(1, TimeUnit.SECONDS) != null;
+            }
+            assert windowed.getEchoTimeouts() == 0;
+        } finally {
+            windowed.close();
+            fastRx.close();
+            fast.close();
+        }
+    }
+
+    @Test
+    public void testLastValueCache() throws IOException, InterruptedException {
+        final VirtualCanBus bus = new VirtualCanBus("vcan-lvc");
+        final CanSocket sender = bus.openSocket();
+        final CanSocket rx = bus.openSocket();
+        final CanId pgn = new CanId(0x18FEF100).setEFFSFF();
+        final LastValueCache cache = new LastValueCache(new CanId(0x123), pgn);
+        final AtomicInteger changes = new AtomicInteger();
+        cache.addChangeListener(new LastValueCache.ChangeListener() {
+            @Override
+            public void onChange(int canId, long data, int length,
+                    long timestampNanos) {
+                changes.incrementAndGet();
+            }
+        });
+        cache.addChangeListener(new LastValueCache.ChangeListener() {
+            @Override
+            public void onChange(int canId, long data, int length,
+                    long timestampNanos) {
+                throw new IllegalStateException("listener failure");
+            }
+        });
+        try {
+            cache.start(rx);
+            final CanInterface canif = bus.getInterface();
+            sender.send(new CanFrame(canif, pgn, new byte[] { 1, 2, 3 }));
+            sender.send(new CanFrame(canif, pgn, new byte[] { 1, 2, 3 }));
+            sender.send(new CanFrame(canif, pgn, new byte[] { 4, 5 }));
+            sender.send(new CanFrame(canif, new CanId(0x124), new byte[1]));
+            final long deadline = System.currentTimeMillis() + 2000;
+            while (cache.getIgnored() == 0
+                    && System.currentTimeMillis() < deadline) {
+                Thread.sleep(5);
+            }
+            final LastValueCache.Value value = new LastValueCache.Value();
+            assert cache.read(pgn, value);
+            assert value.getUpdates() == 3;
+            assert value.getLength() == 2;
+            assert value.getData()[0] == 4 && value.getData()[1] == 5;
+            assert cache.readData(pgn._canId) == 0x0504;
+            assert changes.get() == 2;
+            assert !cache.read(0x123, value);
+            assert !cache.read(0x124, value);
+        } finally {
+            cache.close();
+            sender.close();
+            rx.close();
+            bus.close();
+        }
+    }
+
+    @Test
+    public void testCaptureStore() throws IOException {
+        final File dir = new File(System.getProperty("java.io.tmpdir"),
+                "capture-test-" + System.nanoTime());
+        final CaptureWriter writer = new CaptureWriter(dir, 1000);
+        final byte[] data = new byte[8];
+        /* segment 0 only has 0x100, segment 1 adds 0x200, segment 2 is open */
+        for (int i = 0; i < 2500; i++) {
+            data[0] = (byte) i;
+            final int canId = i >= 1000 && i % 10 == 0 ? 0x200 : 0x100;
+            writer.append(1000000L + i, canId, data, 0, 8);
+        }
+        writer.close();
+        final CaptureStore store = new CaptureStore(dir);
+        try {
+            CaptureStore.Cursor cursor = store.query(new CaptureStore.Query()
+                    .ids(0x200));
+            long last = 0;
+            while (cursor.next()) {
+                final CaptureStore.FrameView frame = cursor.frame();
+                assert frame.getCanId() == 0x200;
+                assert frame.getTimeMicros() > last;
+                last = frame.getTimeMicros();
+            }
+            assert cursor.getCount() == 150;
+            assert cursor.getSkippedSegments() == 1;
+
+            cursor = store.query(new CaptureStore.Query()
+                    .idMask(0x100, 0x7FF)
+                    .between(1000100L, 1000199L)
+                    .where(new CaptureStore.PayloadPredicate() {
+                        @Override
+                        public boolean test(CaptureStore.FrameView frame) {
+                            return (frame.getByte(0) & 1) == 0;
+                        }
+                    }));
+            while (cursor.next()) {
+                assert (cursor.frame().getData() & 1) == 0;
+            }
+            assert cursor.getCount() == 50;
+            assert cursor.getScannedSegments() == 1;
+
+            /* a mask without the EFF flag still prunes by the standard bits */
+            cursor = store.query(new CaptureStore.Query().idMask(0x200, 0x7FF));
+            while (cursor.next()) {
+                assert cursor.frame().getCanId() == 0x200;
+            }
+            assert cursor.getCount() == 150;
+            assert cursor.getSkippedSegments() == 1;
+
+            final FileOutputStream junk = new FileOutputStream(new File(dir,
+                    String.format("capture-%06d%s", 99, CaptureSegment.SUFFIX)));
+            junk.write(new byte[16]);
+            junk.close();
+            try {
+                store.query(new CaptureStore.Query());
+                assert false;
+            } catch (IOException e) {
+                /* expected, the started scans are cancelled */
+            }
+        } finally {
+            store.close();
+            for (File file : dir.listFiles()) {
+                file.delete();
+            }
+            dir.delete();
+        }
+    }
+
+    @Test
+    public void testUdpBridge() throws IOException, InterruptedException {
+        final VirtualCanBus busA = new VirtualCanBus("vcan-udp-a");
+        final VirtualCanBus busB = new VirtualCanBus("vcan-udp-b");
+        final InetSocketAddress any = new InetSocketAddress("127.0.0.1", 0);
+        final DatagramChannel channelA = DatagramChannel.open();
+        final DatagramChannel channelB = DatagramChannel.open();
+        channelA.socket().bind(any);
+        channelB.socket().bind(any);
+        channelA.connect(channelB.socket().getLocalSocketAddress());
+        channelB.connect(channelA.socket().getLocalSocketAddress());
+        final CanSocket sender = busA.openSocket();
+        final CanSocket rx = busB.openSocket();
+        final UdpBridge bridgeA = new UdpBridge(busA.openSocket(),
+                busA.getInterface(), channelA).setFlushInterval(20,
+                TimeUnit.MILLISECONDS);
+        final UdpBridge bridgeB = new UdpBridge(busB.openSocket(),
+                busB.getInterface(), channelB);
+        try {
+            bridgeA.start();
+            bridgeB.start();
+            final byte[] data = new byte[8];
+            for (int i = 0; i < 300; i++) {
+                data[0] = (byte) i;
+                sender.send(busA.getInterface(), i == 7 ? 0x12345678 | 0x80000000
+                        : 0x100 + i, data, 0, i % 9);
+            }
+            for (int i = 0; i < 300; i++) {
+                final CanFrame frame = rx.recv(2, TimeUnit.SECONDS);
+                assert frame != null;
+                assert frame.getData().length == i % 9;
+                if (i == 7) {
+                    assert frame.getCanId().isSetEFFSFF();
+                    assert frame.getCanId().getCanId_EFF() == 0x12345678;
+                } else {
+                    assert frame.getCanId().getCanId_SFF() == 0x100 + i;
+                }
+            }
+            /* A counts a datagram after writing it, B may be quicker */
+            final long deadline = System.currentTimeMillis() + 2000;
+            while (bridgeA.getFramesOut() < 300
+                    && System.currentTimeMillis() < deadline) {
+                Thread.sleep(1);
+            }
+            assert bridgeA.getFramesOut() == 300;
+            /* 300 frames take about 2.7 KB, more than one datagram holds */
+            assert bridgeA.getDatagramsOut() >= 2;
+            assert bridgeA.getDatagramsOut() < 30;
+            assert bridgeB.getFramesIn() == 300;
+            assert bridgeB.getDatagramsLost() == 0;
+            assert bridgeB.getMalformed() == 0;
+
+            /* a length beyond CAN FD is rejected, not read past the array */
+            final ByteBuffer bad = ByteBuffer.allocate(UdpBridge.HEADER_SIZE
+                    + 5 + 0x7F);
+            bad.put((byte) UdpBridge.VERSION).put((byte) UdpBridge.OP_DATA)
+                    .put((byte) 0).putShort((short) 1);
+            bad.putInt(0x123).put((byte) 0x7F);
+            bad.clear();
+            channelA.write(bad);
+            /* remote frames keep their DLC */
+            sender.send(busA.getInterface(), 0x321 | CanSocket.CAN_RTR_FLAG,
+                    data, 0, 3);
+            final CanFrame remote = rx.recv(2, TimeUnit.SECONDS);
+            assert remote != null;
+            assert (remote.getCanId()._canId & CanSocket.CAN_RTR_FLAG) != 0;
+            assert remote.getData().length == 3;
+            assert bridgeB.getMalformed() == 1;
+            assert bridgeB.getFailure() == null;
+        } finally {
+            bridgeA.close();
+            bridgeB.close();
+            sender.close();
+            rx.close();
+            busA.close();
+            busB.close();
+        }
+    }
+
+    @Test
+    public void testBroadcastRing() throws IOException {
+        final File file = new File(System.getProperty("java.io.tmpdir"),
+                "ring-test-" + System.nanoTime());
+        try {
+            final BroadcastRing.Writer writer = BroadcastRing.create(file, 50);
+            assert writer.getCapacity() == 64;
+            final BroadcastRing.Reader reader = BroadcastRing.attach(file,
+                    false);
+            final BroadcastRing.Reader late = BroadcastRing.attach(file,
+                    false);
+            final byte[] data = new byte[8];
+            for (int i = 0; i < 40; i++) {
+                data[0] = (byte) i;
+                writer.publish(1000L + i, 0x100 + i, data, 0, i % 9, 3);
+            }
+            for (int i = 0; i < 40; i++) {
+                assert reader.next();
+                assert reader.getCanId() == 0x100 + i;
+                assert reader.getLength() == i % 9;
+                assert reader.getTimeMicros() == 1000L + i;
+                assert reader.getInterfaceIndex() == 3;
+                assert (reader.getData() & 0xFF) == (i % 9 == 0 ? 0 : i);
+            }
+            assert !reader.next();
+            assert reader.getLapped() == 0;
+
+            /* the late reader is 100 frames behind a ring of 64 */
+            for (int i = 40; i < 100; i++) {
+                writer.publish(1000L + i, 0x100 + i, data, 0, 0, 3);
+            }
+            int count = 0;
+            while (late.next()) {
+                assert late.getCanId() == 0x100 + 36 + count;
+                count++;
+            }
+            assert count == 64;
+            assert late.getLapped() == 36;
+            assert late.getCursor() == writer.getPublished();
+
+            final BroadcastRing.Reader oldest = BroadcastRing.attach(file,
+                    true);
+            assert oldest.next(1, TimeUnit.SECONDS);
+            assert oldest.getCanId() == 0x100 + 36;
+            assert oldest.getBacklog() == 63;
+
+            /* an illegal length is rejected before any slot is claimed */
+            try {
+                writer.publish(0, 0x100, new byte[9], 0, 9, 3);
+                assert false;
+            } catch (IllegalArgumentException e) {
+                /* EMPTY */
+            }
+            writer.publish(2000L, 0x200, data, 0, 1, 3);
+            assert late.next();
+            assert late.getCanId() == 0x200;
+            assert late.getLapped() == 36;
+            writer.close();
+
+            /* a smaller ring replaces the file, old readers are told so */
+            final BroadcastRing.Writer smaller = BroadcastRing.create(file, 8);
+            assert late.isReplaced();
+            assert !late.next(1, TimeUnit.SECONDS);
+            smaller.publish(3000L, 0x300, data, 0, 1, 3);
+            final BroadcastRing.Reader again = BroadcastRing.attach(file,
+                    true);
+            assert !again.isReplaced();
+            assert again.next();
+            assert again.getCanId() == 0x300;
+            smaller.close();
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void testTrafficGenerator() throws IOException {
+        final VirtualCanBus bus = new VirtualCanBus("vcan-gen");
+        final CanSocket rx = bus.openSocket();
+        final CanSocket tx = bus.openSocket();
+        try {
+            final TrafficGenerator generator = new TrafficGenerator(tx,
+                    bus.getInterface())
+                    .setIds(TrafficGenerator.IdMode.RANDOM, 0x200, 0x20F,
+                            false)
+                    .setLengthDistribution(0, 0, 1, 0, 0, 0, 0, 0, 1)
+                    .setPayload(TrafficGenerator.PayloadMode.RANDOM)
+                    .setSeed(42)
+                    .setRate(2000)
+                    .addPeriodic(new CanId(0x7FF), new byte[] { 1 }, 50,
+                            TimeUnit.MILLISECONDS);
+            final TrafficGenerator.Report report = generator.run(250,
+                    TimeUnit.MILLISECONDS);
+            Log.d(TAG, report.toString());
+            assert report.getRequestedFramesPerSecond() == 2000;
+            /* on schedule every due frame goes out, a slip may drop some */
+            final long background = report.getFrames()
+                    - report.getPeriodicFrames();
+            if (report.getSlips() == 0) {
+                assert report.getPeriodicFrames() == 5;
+                assert background == 500;
+            } else {
+                assert report.getPeriodicFrames() >= 1
+                        && report.getPeriodicFrames() <= 5;
+                assert background > 0 && background <= 500;
+            }
+            assert report.getBackgroundFramesPerSecond() <= 2000 * 1.05;
+            int periodic = 0;
+            for (int i = 0; i < report.getFrames(); i++) {
+                final CanFrame frame = rx.recv(1, TimeUnit.SECONDS);
+                assert frame != null;
+                final int id = frame.getCanId().getCanId_SFF();
+                if (id == 0x7FF) {
+                    periodic++;
+                    continue;
+                }
+                assert id >= 0x200 && id <= 0x20F;
+                final int length = frame.getData().length;
+                assert length == 2 || length == 8;
+            }
+            assert periodic == report.getPeriodicFrames();
+            assert rx.tryRecv() == null;
+
+            /* 10% of 125 kbit/s are about 115 frames/s of 8 bytes */
+            final TrafficGenerator.Report load = new TrafficGenerator(tx,
+                    bus.getInterface()).setBusLoad(125000, 10).run(200,
+                    TimeUnit.MILLISECONDS);
+            Log.d(TAG, load.toString());
+            assert load.getBusLoad() < 12;
+            assert load.getSlips() > 0 || load.getBusLoad() > 8;
+        } finally {
+            rx.close();
+            tx.close();
+            bus.close();
+        }
+    }
+
+    @Test
+    public void testLatencyTracer() throws IOException, InterruptedException {
+        final LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 1; i <= 100000; i++) {
+            histogram.record(i);
+        }
+        assert Math.abs(histogram.getValueAtPercentile(50) - 50000) < 50000 / 32;
+        assert histogram.getValueAtPercentile(100) == 100000;
+        assert histogram.getMin() == 1;
+
+        /* a wall clock step falls back to the monotonic round trip */
+        final LatencyTracer.Rule stepped = new LatencyTracer().addRule("step",
+                0x7E0, 0x7FF, 0x7E8, 0x7FF, 1, TimeUnit.SECONDS);
+        stepped.begin(0, 5000000, 0);
+        assert stepped.complete(0, 1000000, 3000000);
+        stepped.begin(0, 1000000, 0);
+        assert stepped.complete(0, 60000000, 3000000);
+        stepped.begin(0, 1000000, 0);
+        assert stepped.complete(0, 1002000, 3000000);
+        assert stepped.getClockSteps() == 2;
+        assert stepped.getHistogram().getMax() == 3000000;
+        assert stepped.getHistogram().getMin() == 2000000;
+
+        final VirtualCanBus bus = new VirtualCanBus("vcan-rtt");
+        final CanSocket client = bus.openSocket();
+        final CanSocket server = bus.openSocket();
+        final CanInterface canif = bus.getInterface();
+        final LatencyTracer tracer = new LatencyTracer();
+        try {
+            client.setRecvOwnMsgsMode(true);
+            client.setTimestampMode(true);
+            server.setTimestampMode(true);
+            /* the response repeats the data identifier in bytes 2 and 3 */
+            final LatencyTracer.Rule rule = tracer.addRule("did", 0x7E0,
+                    0x7FF, 0x7E8, 0x7FF, 100, TimeUnit.MILLISECONDS, 2, 2, 2);
+            tracer.start(client);
+            for (int i = 0; i < 10; i++) {
+                client.send(canif, 0x7E0, new byte[] { 3, 0x22, (byte) 0xF1,
+                        (byte) i }, 0, 4);
+                final CanFrame request = server.recv(1, TimeUnit.SECONDS);
+                assert request != null;
+                assert Math.abs(request.getTimestamp()
+                        - System.currentTimeMillis() * 1000) < 1000000;
+                Thread.sleep(2);
+                final byte[] data = request.getData();
+                server.send(canif, 0x7E8, new byte[] { 4, 0x62, data[2],
+                        data[3] }, 0, 4);
+            }
+            client.send(canif, 0x7E0, new byte[] { 3, 0x22, (byte) 0xF1,
+                    (byte) 0x99 }, 0, 4);
+            server.send(canif, 0x7E8, new byte[] { 4, 0x62, (byte) 0xAA,
+                    (byte) 0xBB }, 0, 4);
+            final long deadline = System.currentTimeMillis() + 2000;
+            while (rule.getTimeouts() == 0
+                    && System.currentTimeMillis() < deadline) {
+                Thread.sleep(5);
+            }
+            Log.d(TAG, rule.toString());
+            assert rule.getHistogram().getCount() == 10;
+            assert rule.getTimeouts() == 1;
+            assert rule.getUnmatched() == 1;
+            assert rule.getOverflows() == 0;
+            assert rule.getClockSteps() == 0;
+            assert rule.getHistogram().getMin() >= TimeUnit.MILLISECONDS
+                    .toNanos(2);
+            assert rule.getHistogram().getValueAtPercentile(50) < TimeUnit.MILLISECONDS
+                    .toNanos(100);
+        } finally {
+            tracer.close();
+            client.close();
+            server.close();
+            bus.close();
+        }
+    }
+
+    @Test
+    public void testBufferSize() throws IOException {
+        final CanSocket socket = new CanSocket(Mode.RAW);
+        try {
+            socket.setReceiveBufferSize(64 * 1024);
+            /* the kernel doubles the value */
+            assert socket.getReceiveBufferSize() >= 64 * 1024;
+            socket.setSendBufferSize(16 * 1024);
+            assert socket.getSendBufferSize() >= 16 * 1024;
+            assert socket.getRxDropped() == 0;
+        } finally {
+            socket.close();
+        }
+    }
+
     @Test
     public void testMtu() throws IOException {
     	final CanSocket socket = new CanSocket(Mode.RAW);
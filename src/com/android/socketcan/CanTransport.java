@@ -0,0 +1,92 @@
+package com.android.socketcan;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+import com.android.socketcan.CanSocket.CanFrame;
+
+/**
+ * What a CanSocket needs from the layer that actually moves frames. The
+ * default implementation talks to a SocketCAN file descriptor through JNI;
+ * VirtualCanBus provides a pure Java one for machines without can/vcan.
+ *
+ * CanSocket serializes close() against all other calls, so implementations
+ * only need to be safe for concurrent send/recv/wakeup.
+ *
+ * @author aplex
+ *
+ */
+public interface CanTransport extends Closeable {
+
+	void bind(int ifIndex) throws IOException;
+
+	/**
+	 * Queues one frame with the payload data[offset, offset + length)
+	 *
+	 * @return false if the transmit queue is full (ENOBUFS)
+	 * @throws IOException
+	 */
+	boolean send(int ifIndex, int canId, byte[] data, int offset, int length)
+			throws IOException;
+
+	/**
+	 * Receives one frame
+	 *
+	 * @param timeoutMs
+	 *            0 never waits, -1 waits without limit
+	 * @return null on timeout, spurious return or while woken up
+	 * @throws IOException
+	 */
+	CanFrame recv(int timeoutMs) throws IOException;
+
+	/**
+	 * Makes current and future recv waits return null until clearWakeup()
+	 */
+	void wakeup() throws IOException;
+
+	void clearWakeup() throws IOException;
+
+	int discoverInterfaceIndex(String ifName) throws IOException;
+
+	String discoverInterfaceName(int ifIndex) throws IOException;
+
+	int getMtu(String ifName) throws IOException;
+
+	void setLoopbackMode(boolean on) throws IOException;
+
+	boolean getLoopbackMode() throws IOException;
+
+	void setRecvOwnMsgsMode(boolean on) throws IOException;
+
+	boolean getRecvOwnMsgsMode() throws IOException;
+
+	/**
+	 * Stamps received frames with their arrival time (SO_TIMESTAMP)
+	 *
+	 * @param on
+	 * @throws IOException
+	 */
+	void setTimestampMode(boolean on) throws IOException;
+
+	boolean getTimestampMode() throws IOException;
+
+	/**
+	 * Sizes the receive or send buffer (SO_RCVBUF, SO_SNDBUF)
+	 *
+	 * @param receive
+	 * @param bytes
+	 * @param force
+	 *            go beyond the system limit (SO_RCVBUFFORCE, SO_SNDBUFFORCE)
+	 * @throws IOException
+	 */
+	void setBufferSize(boolean receive, int bytes, boolean force)
+			throws IOException;
+
+	int getBufferSize(boolean receive) throws IOException;
+
+	/**
+	 * @return frames dropped because the receive buffer was full
+	 * @throws IOException
+	 */
+	long getRxDropped() throws IOException;
+}
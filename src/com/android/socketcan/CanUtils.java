@@ -1,7 +1,6 @@
 package com.android.socketcan;
 
 import java.io.IOException;
-import java.util.Arrays;
 
 import android.R.integer;
 import android.util.Log;
@@ -58,21 +57,9 @@ public class CanUtils {
    		return null;
 	}
 	
-	public static void sendCan0Data(byte[] data) {
-		try {
-			CanId id = new CanId(0x05);
-			int i = 0;
-			byte currentData[] = null;
-			for(; i*8 < data.length - 8; i++) {
-				currentData = Arrays.copyOfRange(data, i*8, (i+1)*8);
-				socket.send(new CanFrame(canif, id, currentData));
-			}
-			currentData = Arrays.copyOfRange(data, i*8, data.length);
-			socket.send(new CanFrame(canif, id, currentData));
-		} catch (IOException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
-		}
+	public static BulkSender.Stats sendCan0Data(byte[] data) throws IOException {
+		return new BulkSender(socket, canif, new CanId(0x05)).send(data, 0,
+				data.length);
 	}
 
 }
@@ -0,0 +1,216 @@
+package com.android.socketcan;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * One file of a capture: a header with the segment index followed by fixed
+ * size records in time order.
+ *
+ * Header: magic, version, flags, record size, record count, first and last
+ * timestamp, then a bitmap of the identifiers in the segment. Standard
+ * identifiers own one bit each, extended ones are hashed onto the rest of
+ * the bitmap, so the bitmap can only err towards scanning a segment.
+ *
+ * Record: timestamp in microseconds (long), raw canid_t (int), length
+ * (int), payload (8 bytes). All values little-endian.
+ *
+ * The header is written when a segment is sealed. A segment left unsealed
+ * by a crash is still readable, it just has no bitmap to skip it by.
+ *
+ * @author aplex
+ *
+ */
+final class CaptureSegment {
+
+	static final int MAGIC = 0x43414E43;
+	static final int VERSION = 1;
+	static final int FLAG_SEALED = 1;
+
+	static final int BITMAP_BITS = 8192;
+	static final int HEADER_SIZE = 64 + BITMAP_BITS / 8;
+
+	static final int RECORD_SIZE = 24;
+	static final int OFF_TIME = 0;
+	static final int OFF_CAN_ID = 8;
+	static final int OFF_LENGTH = 12;
+	static final int OFF_DATA = 16;
+
+	static final String SUFFIX = ".seg";
+
+	final File _file;
+	final boolean _sealed;
+	final int _count;
+	final long _firstMicros;
+	final long _lastMicros;
+	private final long[] _bitmap;
+
+	private CaptureSegment(final File file, final boolean sealed,
+			final int count, final long firstMicros, final long lastMicros,
+			final long[] bitmap) {
+		this._file = file;
+		this._sealed = sealed;
+		this._count = count;
+		this._firstMicros = firstMicros;
+		this._lastMicros = lastMicros;
+		this._bitmap = bitmap;
+	}
+
+	static int bitOf(final int canId) {
+		if ((canId & CanSocket.CAN_EFF_FLAG) != 0) {
+			final int h = (canId & CanSocket.CAN_EFF_MASK) * 0x9E3779B9;
+			return 2048 + ((h ^ (h >>> 16)) & 0x7FFFFFFF) % (BITMAP_BITS - 2048);
+		}
+		return canId & CanSocket.CAN_SFF_MASK;
+	}
+
+	static ByteBuffer newHeader() {
+		return ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+	}
+
+	static void putHeader(final ByteBuffer header, final int flags,
+			final int count, final long firstMicros, final long lastMicros,
+			final long[] bitmap) {
+		header.clear();
+		header.putInt(MAGIC).putInt(VERSION).putInt(flags)
+				.putInt(RECORD_SIZE).putLong(count).putLong(firstMicros)
+				.putLong(lastMicros);
+		header.position(64);
+		for (long word : bitmap) {
+			header.putLong(word);
+		}
+		header.flip();
+	}
+
+	static CaptureSegment open(final File file) throws IOException {
+		final RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			final FileChannel channel = raf.getChannel();
+			final ByteBuffer header = newHeader();
+			while (header.hasRemaining() && channel.read(header) != -1) {
+				/* EMPTY */
+			}
+			header.flip();
+			if (header.remaining() < HEADER_SIZE
+					|| header.getInt(0) != MAGIC) {
+				throw new IOException(file + ": not a capture segment");
+			}
+			if (header.getInt(4) != VERSION
+					|| header.getInt(12) != RECORD_SIZE) {
+				throw new IOException(file + ": unsupported version");
+			}
+			final long[] bitmap = new long[BITMAP_BITS / 64];
+			if ((header.getInt(8) & FLAG_SEALED) != 0) {
+				header.position(64);
+				for (int i = 0; i < bitmap.length; i++) {
+					bitmap[i] = header.getLong();
+				}
+				return new CaptureSegment(file, true,
+						(int) header.getLong(16), header.getLong(24),
+						header.getLong(32), bitmap);
+			}
+			/* unsealed: trust the file size and the records themselves */
+			final int count = (int) ((channel.size() - HEADER_SIZE) / RECORD_SIZE);
+			Arrays.fill(bitmap, -1L);
+			long first = Long.MAX_VALUE;
+			long last = Long.MIN_VALUE;
+			if (count > 0) {
+				final ByteBuffer time = ByteBuffer.allocate(8).order(
+						ByteOrder.LITTLE_ENDIAN);
+				channel.read(time, HEADER_SIZE);
+				first = time.getLong(0);
+				time.clear();
+				channel.read(time, HEADER_SIZE + (long) (count - 1)
+						* RECORD_SIZE);
+				last = time.getLong(0);
+			}
+			return new CaptureSegment(file, false, count, first, last, bitmap);
+		} finally {
+			raf.close();
+		}
+	}
+
+	boolean mayContain(final int canId) {
+		final int bit = bitOf(canId);
+		return (_bitmap[bit >>> 6] & (1L << bit)) != 0;
+	}
+
+	/**
+	 * @return true if the bitmap has a bit set in the extended part
+	 */
+	boolean hasExtended() {
+		for (int i = 2048 / 64; i < _bitmap.length; i++) {
+			if (_bitmap[i] != 0) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Extended identifiers are hashed, so a mask matching them can only
+	 * prune a segment holding none at all.
+	 *
+	 * @return false only if no identifier in the segment can match
+	 */
+	boolean mayContainMasked(final int canId, final int mask) {
+		final boolean effOnly = (mask & CanSocket.CAN_EFF_FLAG) != 0
+				&& (canId & CanSocket.CAN_EFF_FLAG) != 0;
+		final boolean sffOnly = (mask & CanSocket.CAN_EFF_FLAG) != 0
+				&& (canId & CanSocket.CAN_EFF_FLAG) == 0;
+		if (effOnly || (!sffOnly && hasExtended())) {
+			return hasExtended();
+		}
+		/* only standard identifiers match, they have exact bits */
+		final int sffMask = mask & CanSocket.CAN_SFF_MASK;
+		for (int id = 0; id <= CanSocket.CAN_SFF_MASK; id++) {
+			if ((id & sffMask) == (canId & sffMask) && mayContain(id)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	boolean overlaps(final long fromMicros, final long toMicros) {
+		return _count > 0 && _firstMicros <= toMicros
+				&& _lastMicros >= fromMicros;
+	}
+
+	MappedByteBuffer map() throws IOException {
+		final RandomAccessFile raf = new RandomAccessFile(_file, "r");
+		try {
+			final MappedByteBuffer buffer = raf.getChannel().map(
+					FileChannel.MapMode.READ_ONLY, HEADER_SIZE,
+					(long) _count * RECORD_SIZE);
+			buffer.order(ByteOrder.LITTLE_ENDIAN);
+			return buffer;
+		} finally {
+			/* the mapping stays valid after the channel is closed */
+			raf.close();
+		}
+	}
+
+	/**
+	 * @return index of the first record at or after micros
+	 */
+	static int lowerBound(final ByteBuffer records, final int count,
+			final long micros) {
+		int lo = 0;
+		int hi = count;
+		while (lo < hi) {
+			final int mid = (lo + hi) >>> 1;
+			if (records.getLong(mid * RECORD_SIZE + OFF_TIME) < micros) {
+				lo = mid + 1;
+			} else {
+				hi = mid;
+			}
+		}
+		return lo;
+	}
+}
@@ -0,0 +1,445 @@
+package com.android.socketcan;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import com.android.socketcan.CanSocket.CanId;
+
+/**
+ * Queries the segments written by CaptureWriter. A query first drops every
+ * segment whose time range or identifier bitmap rules it out, then scans
+ * the remaining ones in parallel over memory mapped files. Results come
+ * back in time order through a cursor whose FrameView is reused for every
+ * match, so iterating allocates nothing per frame.
+ *
+ * @author aplex
+ *
+ */
+public final class CaptureStore implements Closeable {
+
+	/**
+	 * Evaluated on the scanning threads, so it must be thread safe
+	 */
+	public interface PayloadPredicate {
+		boolean test(FrameView frame);
+	}
+
+	/**
+	 * A record in a mapped segment; only valid until the cursor moves on
+	 */
+	public static final class FrameView {
+		private ByteBuffer _records;
+		private int _offset;
+
+		void set(final ByteBuffer records, final int index) {
+			this._records = records;
+			this._offset = index * CaptureSegment.RECORD_SIZE;
+		}
+
+		/**
+		 * @return microseconds since the epoch
+		 */
+		public long getTimeMicros() {
+			return _records.getLong(_offset + CaptureSegment.OFF_TIME);
+		}
+
+		/**
+		 * @return raw canid_t including the EFF/RTR/ERR flags
+		 */
+		public int getCanId() {
+			return _records.getInt(_offset + CaptureSegment.OFF_CAN_ID);
+		}
+
+		public int getLength() {
+			return _records.getInt(_offset + CaptureSegment.OFF_LENGTH);
+		}
+
+		public byte getByte(final int i) {
+			return _records.get(_offset + CaptureSegment.OFF_DATA + i);
+		}
+
+		/**
+		 * @return the payload, byte i in bits 8*i to 8*i+7
+		 */
+		public long getData() {
+			return _records.getLong(_offset + CaptureSegment.OFF_DATA);
+		}
+
+		/**
+		 * @return number of bytes copied
+		 */
+		public int copyData(final byte[] dst, final int offset) {
+			final int length = getLength();
+			for (int i = 0; i < length; i++) {
+				dst[offset + i] = getByte(i);
+			}
+			return length;
+		}
+	}
+
+	/**
+	 * What to look for; criteria left out match everything
+	 */
+	public static final class Query {
+		private int[] _ids;
+		private int _maskId;
+		private int _mask;
+		private long _fromMicros = Long.MIN_VALUE;
+		private long _toMicros = Long.MAX_VALUE;
+		private PayloadPredicate _predicate;
+
+		public Query ids(final CanId... canIds) {
+			final int[] ids = new int[canIds.length];
+			for (int i = 0; i < ids.length; i++) {
+				ids[i] = canIds[i]._canId;
+			}
+			return ids(ids);
+		}
+
+		/**
+		 * @param canIds
+		 *            raw canid_t, RTR/ERR flags are ignored
+		 * @return
+		 */
+		public Query ids(final int... canIds) {
+			_ids = new int[canIds.length];
+			for (int i = 0; i < canIds.length; i++) {
+				_ids[i] = key(canIds[i]);
+			}
+			Arrays.sort(_ids);
+			return this;
+		}
+
+		/**
+		 * Matches identifiers with (id & mask) == (canId & mask), like a
+		 * CAN_RAW_FILTER entry
+		 */
+		public Query idMask(final int canId, final int mask) {
+			_maskId = canId;
+			_mask = mask;
+			return this;
+		}
+
+		/**
+		 * @param fromMicros
+		 *            inclusive
+		 * @param toMicros
+		 *            inclusive
+		 * @return
+		 */
+		public Query between(final long fromMicros, final long toMicros) {
+			_fromMicros = fromMicros;
+			_toMicros = toMicros;
+			return this;
+		}
+
+		public Query where(final PayloadPredicate predicate) {
+			_predicate = predicate;
+			return this;
+		}
+
+		boolean skips(final CaptureSegment segment) {
+			if (!segment.overlaps(_fromMicros, _toMicros)) {
+				return true;
+			}
+			if (_mask != 0 && !segment.mayContainMasked(_maskId, _mask)) {
+				return true;
+			}
+			if (_ids != null) {
+				for (int id : _ids) {
+					if (segment.mayContain(id)) {
+						return false;
+					}
+				}
+				return true;
+			}
+			return false;
+		}
+
+		boolean matches(final FrameView frame) {
+			final int canId = frame.getCanId();
+			if (_ids != null && Arrays.binarySearch(_ids, key(canId)) < 0) {
+				return false;
+			}
+			if ((canId & _mask) != (_maskId & _mask)) {
+				return false;
+			}
+			return _predicate == null || _predicate.test(frame);
+		}
+	}
+
+	/* the identifier without RTR/ERR */
+	private static int key(final int canId) {
+		if ((canId & CanSocket.CAN_EFF_FLAG) != 0) {
+			return canId & (CanSocket.CAN_EFF_FLAG | CanSocket.CAN_EFF_MASK);
+		}
+		return canId & CanSocket.CAN_SFF_MASK;
+	}
+
+	/**
+	 * Matches of one query in time order
+	 */
+	public final class Cursor implements Closeable {
+		private final List<Future<Matches>> _pending;
+		private final int _skipped;
+		private final FrameView _view = new FrameView();
+		private int _next;
+		private Matches _current;
+		private int _position;
+		private long _count;
+
+		Cursor(final List<Future<Matches>> pending, final int skipped) {
+			this._pending = pending;
+			this._skipped = skipped;
+		}
+
+		/**
+		 * Moves to the next match, waiting for its segment to be scanned
+		 *
+		 * @return false when there are no more matches
+		 * @throws IOException
+		 */
+		public boolean next() throws IOException {
+			while (_current == null || _position == _current._count) {
+				if (_next == _pending.size()) {
+					return false;
+				}
+				_current = await(_pending.get(_next));
+				_pending.set(_next++, null);
+				_position = 0;
+			}
+			_view.set(_current._records, _current._indexes[_position++]);
+			_count++;
+			return true;
+		}
+
+		/**
+		 * @return the current match, the same object after every next()
+		 */
+		public FrameView frame() {
+			return _view;
+		}
+
+		/**
+		 * @return matches returned so far
+		 */
+		public long getCount() {
+			return _count;
+		}
+
+		/**
+		 * @return segments left out because of their index
+		 */
+		public int getSkippedSegments() {
+			return _skipped;
+		}
+
+		public int getScannedSegments() {
+			return _pending.size();
+		}
+
+		/**
+		 * Cancels the scans not consumed yet
+		 */
+		@Override
+		public void close() {
+			for (int i = _next; i < _pending.size(); i++) {
+				_pending.get(i).cancel(true);
+			}
+			_next = _pending.size();
+			_current = null;
+		}
+
+		private Matches await(final Future<Matches> future)
+				throws IOException {
+			try {
+				return future.get();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("query interrupted");
+			} catch (ExecutionException e) {
+				final Throwable cause = e.getCause();
+				if (cause instanceof IOException) {
+					throw (IOException) cause;
+				}
+				if (cause instanceof RuntimeException) {
+					throw (RuntimeException) cause;
+				}
+				throw new IOException(String.valueOf(cause));
+			}
+		}
+	}
+
+	/* indexes of the matching records of one segment */
+	private static final class Matches {
+		final ByteBuffer _records;
+		final int[] _indexes;
+		final int _count;
+
+		Matches(final ByteBuffer records, final int[] indexes, final int count) {
+			this._records = records;
+			this._indexes = indexes;
+			this._count = count;
+		}
+	}
+
+	private final File _dir;
+	private final ExecutorService _executor;
+	private final boolean _ownsExecutor;
+
+	/**
+	 * Scans with one thread per processor
+	 *
+	 * @param dir
+	 */
+	public CaptureStore(final File dir) {
+		this(dir, Executors.newFixedThreadPool(Runtime.getRuntime()
+				.availableProcessors(), new ThreadFactory() {
+			@Override
+			public Thread newThread(final Runnable r) {
+				final Thread thread = new Thread(r, "CaptureStore");
+				thread.setDaemon(true);
+				return thread;
+			}
+		}), true);
+	}
+
+	/**
+	 * @param dir
+	 * @param executor
+	 *            runs the segment scans, left running by close()
+	 */
+	public CaptureStore(final File dir, final ExecutorService executor) {
+		this(dir, executor, false);
+	}
+
+	private CaptureStore(final File dir, final ExecutorService executor,
+			final boolean ownsExecutor) {
+		this._dir = dir;
+		this._executor = executor;
+		this._ownsExecutor = ownsExecutor;
+	}
+
+	static File[] listSegments(final File dir) {
+		final File[] files = dir.listFiles(new FileFilter() {
+			@Override
+			public boolean accept(final File file) {
+				return file.isFile()
+						&& file.getName().endsWith(CaptureSegment.SUFFIX);
+			}
+		});
+		if (files == null) {
+			return new File[0];
+		}
+		Arrays.sort(files, new Comparator<File>() {
+			@Override
+			public int compare(final File a, final File b) {
+				final int na = segmentNumber(a);
+				final int nb = segmentNumber(b);
+				return na < nb ? -1 : (na == nb ? 0 : 1);
+			}
+		});
+		return files;
+	}
+
+	static int segmentNumber(final File file) {
+		final String name = file.getName();
+		final int start = name.lastIndexOf('-') + 1;
+		final int end = name.length() - CaptureSegment.SUFFIX.length();
+		try {
+			return Integer.parseInt(name.substring(start, end));
+		} catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+
+	/**
+	 * Starts the scans of all segments that may hold matches. Segments are
+	 * read as they are when the query starts. If a segment can't be opened
+	 * the scans already started are cancelled.
+	 *
+	 * @param query
+	 * @return
+	 * @throws IOException
+	 */
+	public Cursor query(final Query query) throws IOException {
+		final List<Future<Matches>> pending = new ArrayList<Future<Matches>>();
+		int skipped = 0;
+		boolean started = false;
+		try {
+			for (File file : listSegments(_dir)) {
+				final CaptureSegment segment = CaptureSegment.open(file);
+				if (query.skips(segment)) {
+					skipped++;
+					continue;
+				}
+				pending.add(_executor.submit(new Callable<Matches>() {
+					@Override
+					public Matches call() throws IOException {
+						return scan(segment, query);
+					}
+				}));
+			}
+			started = true;
+		} finally {
+			if (!started) {
+				for (Future<Matches> future : pending) {
+					future.cancel(true);
+				}
+			}
+		}
+		return new Cursor(pending, skipped);
+	}
+
+	private static Matches scan(final CaptureSegment segment, final Query query)
+			throws IOException {
+		final ByteBuffer records = segment.map();
+		final FrameView view = new FrameView();
+		final int from = query._fromMicros == Long.MIN_VALUE ? 0
+				: CaptureSegment.lowerBound(records, segment._count,
+						query._fromMicros);
+		int[] indexes = new int[64];
+		int count = 0;
+		for (int i = from; i < segment._count; i++) {
+			if ((i & 0xFFF) == 0 && Thread.interrupted()) {
+				throw new InterruptedIOException("scan cancelled");
+			}
+			view.set(records, i);
+			if (view.getTimeMicros() > query._toMicros) {
+				break;
+			}
+			if (!query.matches(view)) {
+				continue;
+			}
+			if (count == indexes.length) {
+				indexes = Arrays.copyOf(indexes, count * 2);
+			}
+			indexes[count++] = i;
+		}
+		return new Matches(records, indexes, count);
+	}
+
+	/**
+	 * Shuts down the scanning threads if the store created them
+	 */
+	@Override
+	public void close() {
+		if (_ownsExecutor) {
+			_executor.shutdownNow();
+		}
+	}
+}
@@ -0,0 +1,177 @@
+package com.android.socketcan;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+import com.android.socketcan.CanSocket.CanFrame;
+
+/**
+ * Records frames into a directory of capture segments that CaptureStore
+ * can query. A new segment is started every recordsPerSegment frames; each
+ * segment gets its identifier bitmap and time range when it is sealed.
+ *
+ * Timestamps are kept non-decreasing, so records of a segment are sorted by
+ * time. Not thread safe.
+ *
+ * @author aplex
+ *
+ */
+public final class CaptureWriter implements Closeable {
+
+	public static final int DEFAULT_RECORDS_PER_SEGMENT = 1 << 20;
+
+	private static final int BUFFER_RECORDS = 2048;
+
+	private final File _dir;
+	private final int _recordsPerSegment;
+	private final ByteBuffer _buffer = ByteBuffer
+			.allocateDirect(BUFFER_RECORDS * CaptureSegment.RECORD_SIZE)
+			.order(ByteOrder.LITTLE_ENDIAN);
+	private final ByteBuffer _header = CaptureSegment.newHeader();
+	private final long[] _bitmap = new long[CaptureSegment.BITMAP_BITS / 64];
+
+	private final WallClock _clock = WallClock.INSTANCE;
+
+	private int _nextSegment;
+	private RandomAccessFile _file;
+	private FileChannel _channel;
+	private int _count;
+	private long _firstMicros;
+	private long _lastMicros = Long.MIN_VALUE;
+
+	public CaptureWriter(final File dir) throws IOException {
+		this(dir, DEFAULT_RECORDS_PER_SEGMENT);
+	}
+
+	/**
+	 * @param dir
+	 *            created if missing; existing segments are kept and new
+	 *            ones numbered after them
+	 * @param recordsPerSegment
+	 */
+	public CaptureWriter(final File dir, final int recordsPerSegment)
+			throws IOException {
+		if (recordsPerSegment <= 0
+				|| recordsPerSegment > Integer.MAX_VALUE
+						/ CaptureSegment.RECORD_SIZE) {
+			throw new IllegalArgumentException("illegal segment size: "
+					+ recordsPerSegment);
+		}
+		if (!dir.isDirectory() && !dir.mkdirs()) {
+			throw new IOException("can't create " + dir);
+		}
+		this._dir = dir;
+		this._recordsPerSegment = recordsPerSegment;
+		for (File file : CaptureStore.listSegments(dir)) {
+			_nextSegment = Math.max(_nextSegment,
+					CaptureStore.segmentNumber(file) + 1);
+		}
+	}
+
+	/**
+	 * Records a frame received now
+	 */
+	public void append(final CanFrame frame) throws IOException {
+		final byte[] data = frame.getData();
+		append(_clock.nowMicros(), frame.getCanId()._canId, data, 0,
+				data.length);
+	}
+
+	/**
+	 * @param timeMicros
+	 *            microseconds since the epoch, raised to the previous
+	 *            record's time if it is earlier
+	 * @param canId
+	 *            raw canid_t
+	 * @param data
+	 * @param offset
+	 * @param length
+	 *            at most 8
+	 * @throws IOException
+	 */
+	public void append(long timeMicros, final int canId, final byte[] data,
+			final int offset, final int length) throws IOException {
+		if (length < 0 || length > 8) {
+			throw new IllegalArgumentException("illegal frame length");
+		}
+		if (_channel == null) {
+			openSegment();
+		}
+		timeMicros = Math.max(timeMicros, _lastMicros);
+		if (_count == 0) {
+			_firstMicros = timeMicros;
+		}
+		_lastMicros = timeMicros;
+		final int bit = CaptureSegment.bitOf(canId);
+		_bitmap[bit >>> 6] |= 1L << bit;
+
+		_buffer.putLong(timeMicros).putInt(canId).putInt(length);
+		_buffer.put(data, offset, length);
+		for (int i = length; i < 8; i++) {
+			_buffer.put((byte) 0);
+		}
+		if (!_buffer.hasRemaining()) {
+			flush();
+		}
+		if (++_count == _recordsPerSegment) {
+			sealSegment();
+		}
+	}
+
+	private void openSegment() throws IOException {
+		final File file = new File(_dir, String.format("capture-%06d%s",
+				_nextSegment++, CaptureSegment.SUFFIX));
+		_file = new RandomAccessFile(file, "rw");
+		_file.setLength(0);
+		_channel = _file.getChannel();
+		_count = 0;
+		Arrays.fill(_bitmap, 0);
+		/* an unsealed header until the segment is complete */
+		writeHeader(0);
+		_channel.position(CaptureSegment.HEADER_SIZE);
+	}
+
+	private void writeHeader(final int flags) throws IOException {
+		CaptureSegment.putHeader(_header, flags, _count, _firstMicros,
+				_lastMicros, _bitmap);
+		long position = 0;
+		while (_header.hasRemaining()) {
+			position += _channel.write(_header, position);
+		}
+	}
+
+	private void flush() throws IOException {
+		_buffer.flip();
+		while (_buffer.hasRemaining()) {
+			_channel.write(_buffer);
+		}
+		_buffer.clear();
+	}
+
+	private void sealSegment() throws IOException {
+		try {
+			flush();
+			writeHeader(CaptureSegment.FLAG_SEALED);
+		} finally {
+			_file.close();
+			_file = null;
+			_channel = null;
+		}
+	}
+
+	/**
+	 * Seals the current segment
+	 */
+	@Override
+	public void close() throws IOException {
+		if (_channel != null) {
+			sealSegment();
+		}
+	}
+}
@@ -0,0 +1,509 @@
+package com.android.socketcan;
+
+import java.io.Closeable;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import android.util.Log;
+
+import com.android.socketcan.CanSocket.CanFrame;
+
+/**
+ * Push based view of the frames received on a CanSocket, shaped after the
+ * Reactive Streams contract. All publishers of one socket share a single
+ * reader thread that receives frames in batches; each subscription applies
+ * its fused filter/map chain on that thread and buffers the result until the
+ * subscriber has requested it. When the buffer is full the OverflowPolicy
+ * decides what happens.
+ *
+ * onNext runs on the reader thread or inside request(), so subscribers should
+ * hand heavy work off to their own threads. A subscriber whose onNext throws
+ * is cancelled and gets the exception through onError; exceptions from
+ * onError and onComplete are logged. Either way the reader thread and the
+ * other subscriptions carry on.
+ *
+ * @author aplex
+ *
+ * @param <T>
+ */
+public final class FramePublisher<T> {
+
+	private static final String TAG = "FramePublisher";
+
+	public static final int DEFAULT_BUFFER_SIZE = 256;
+
+	public static enum OverflowPolicy {
+		/* discard the oldest buffered item to make room */
+		DROP_OLDEST,
+		/* discard the item that does not fit */
+		DROP_NEWEST,
+		/* stall the reader thread until the subscriber requests more */
+		BLOCK
+	}
+
+	public interface Subscriber<T> {
+		void onSubscribe(Subscription subscription);
+
+		void onNext(T item);
+
+		void onError(Throwable error);
+
+		void onComplete();
+	}
+
+	public interface Subscription {
+		void request(long n);
+
+		void cancel();
+
+		/**
+		 * @return number of items discarded by the overflow policy
+		 */
+		long getDroppedCount();
+	}
+
+	public interface Predicate<T> {
+		boolean test(T item);
+	}
+
+	public interface Function<T, R> {
+		R apply(T item);
+	}
+
+	private static final Object[] NO_STAGES = new Object[0];
+	private static final boolean[] NO_KINDS = new boolean[0];
+
+	private final FrameReader _reader;
+	private final int _bufferSize;
+	private final OverflowPolicy _policy;
+	/* Predicate or Function instances applied in order on the reader thread */
+	private final Object[] _stages;
+	private final boolean[] _isFilter;
+
+	FramePublisher(final FrameReader reader, final int bufferSize,
+			final OverflowPolicy policy) {
+		this(reader, bufferSize, policy, NO_STAGES, NO_KINDS);
+	}
+
+	private FramePublisher(final FrameReader reader, final int bufferSize,
+			final OverflowPolicy policy, final Object[] stages,
+			final boolean[] isFilter) {
+		if (bufferSize <= 0) {
+			throw new IllegalArgumentException("illegal buffer size: "
+					+ bufferSize);
+		}
+		if (policy == null) {
+			throw new NullPointerException("policy");
+		}
+		this._reader = reader;
+		this._bufferSize = bufferSize;
+		this._policy = policy;
+		this._stages = stages;
+		this._isFilter = isFilter;
+	}
+
+	private <R> FramePublisher<R> with(final Object stage, final boolean filter) {
+		if (stage == null) {
+			throw new NullPointerException("stage");
+		}
+		final Object[] stages = new Object[_stages.length + 1];
+		final boolean[] isFilter = new boolean[_isFilter.length + 1];
+		System.arraycopy(_stages, 0, stages, 0, _stages.length);
+		System.arraycopy(_isFilter, 0, isFilter, 0, _isFilter.length);
+		stages[_stages.length] = stage;
+		isFilter[_isFilter.length] = filter;
+		return new FramePublisher<R>(_reader, _bufferSize, _policy, stages,
+				isFilter);
+	}
+
+	/**
+	 * Drops items on the reader thread before they are buffered
+	 *
+	 * @param predicate
+	 * @return
+	 */
+	public FramePublisher<T> filter(final Predicate<? super T> predicate) {
+		return with(predicate, true);
+	}
+
+	/**
+	 * Transforms items on the reader thread before they are buffered. A
+	 * null result fails the subscription with a NullPointerException; use
+	 * filter() to drop items.
+	 *
+	 * @param function
+	 * @return
+	 */
+	public <R> FramePublisher<R> map(final Function<? super T, ? extends R> function) {
+		return with(function, false);
+	}
+
+	public void subscribe(final Subscriber<? super T> subscriber) {
+		final FrameSubscription<T> subscription = new FrameSubscription<T>(
+				this, subscriber);
+		subscriber.onSubscribe(subscription);
+		_reader.add(subscription);
+	}
+
+	/**
+	 * Subscribes and returns a blocking iterator over the items, which must be
+	 * closed when the caller stops iterating early
+	 *
+	 * @return
+	 */
+	public BlockingIterator<T> iterator() {
+		final BlockingIterator<T> iterator = new BlockingIterator<T>();
+		subscribe(iterator);
+		return iterator;
+	}
+
+	static final class FrameSubscription<T> implements Subscription {
+		/* returned by apply() for items rejected by a filter */
+		private static final Object SKIP = new Object();
+
+		private final FrameReader _reader;
+		private final Subscriber<? super T> _subscriber;
+		private final OverflowPolicy _policy;
+		private final Object[] _stages;
+		private final boolean[] _isFilter;
+		private final AtomicInteger _wip = new AtomicInteger();
+
+		/* ring buffer and demand, guarded by this */
+		private final Object[] _ring;
+		private int _head;
+		private int _count;
+		private long _requested;
+		private boolean _cancelled;
+		private boolean _done;
+		private Throwable _error;
+		private volatile long _dropped;
+
+		FrameSubscription(final FramePublisher<T> publisher,
+				final Subscriber<? super T> subscriber) {
+			this._reader = publisher._reader;
+			this._subscriber = subscriber;
+			this._policy = publisher._policy;
+			this._stages = publisher._stages;
+			this._isFilter = publisher._isFilter;
+			this._ring = new Object[publisher._bufferSize];
+		}
+
+		@SuppressWarnings("unchecked")
+		private Object apply(final CanFrame frame) {
+			Object item = frame;
+			for (int i = 0; i < _stages.length; i++) {
+				if (_isFilter[i]) {
+					if (!((Predicate<Object>) _stages[i]).test(item)) {
+						return SKIP;
+					}
+				} else {
+					item = ((Function<Object, Object>) _stages[i]).apply(item);
+					if (item == null) {
+						throw new NullPointerException("map returned null");
+					}
+				}
+			}
+			return item;
+		}
+
+		/* called on the reader thread */
+		void offer(final CanFrame[] batch, final int n) {
+			for (int i = 0; i < n; i++) {
+				final Object item;
+				try {
+					item = apply(batch[i]);
+				} catch (RuntimeException e) {
+					fail(e);
+					return;
+				}
+				if (item != SKIP) {
+					enqueue(item);
+				}
+			}
+			drain();
+		}
+
+		private void enqueue(final Object item) {
+			for (;;) {
+				synchronized (this) {
+					if (_cancelled || _done) {
+						return;
+					}
+					final int capacity = _ring.length;
+					if (_count < capacity) {
+						_ring[(_head + _count) % capacity] = item;
+						_count++;
+						return;
+					}
+					if (_policy == OverflowPolicy.DROP_OLDEST) {
+						_ring[_head] = item;
+						_head = (_head + 1) % capacity;
+						_dropped++;
+						return;
+					} else if (_policy == OverflowPolicy.DROP_NEWEST) {
+						_dropped++;
+						return;
+					}
+				}
+				/* BLOCK: deliver what the current demand allows, then wait */
+				drain();
+				synchronized (this) {
+					try {
+						while (!_cancelled && _count == _ring.length
+								&& _requested == 0) {
+							wait();
+						}
+					} catch (InterruptedException e) {
+						/* the reader is being stopped */
+						Thread.currentThread().interrupt();
+						return;
+					}
+				}
+			}
+		}
+
+		void complete() {
+			synchronized (this) {
+				_done = true;
+				notifyAll();
+			}
+			drain();
+		}
+
+		void fail(final Throwable error) {
+			synchronized (this) {
+				if (_error == null) {
+					_error = error;
+				}
+				_done = true;
+				notifyAll();
+			}
+			drain();
+		}
+
+		@SuppressWarnings("unchecked")
+		private void drain() {
+			if (_wip.getAndIncrement() != 0) {
+				return;
+			}
+			int missed = 1;
+			for (;;) {
+				for (;;) {
+					Object item = null;
+					Throwable error = null;
+					boolean terminate = false;
+					synchronized (this) {
+						if (_cancelled) {
+							return;
+						}
+						if (_error != null) {
+							error = _error;
+							terminate = true;
+						} else if (_count == 0) {
+							if (!_done) {
+								break;
+							}
+							terminate = true;
+						} else if (_requested == 0) {
+							break;
+						} else {
+							item = _ring[_head];
+							_ring[_head] = null;
+							_head = (_head + 1) % _ring.length;
+							_count--;
+							if (_requested != Long.MAX_VALUE) {
+								_requested--;
+							}
+							if (_policy == OverflowPolicy.BLOCK) {
+								notifyAll();
+							}
+						}
+						if (terminate) {
+							_cancelled = true;
+						}
+					}
+					if (terminate) {
+						_reader.remove(this);
+						signal(error);
+						return;
+					}
+					try {
+						_subscriber.onNext((T) item);
+					} catch (RuntimeException e) {
+						/* Reactive Streams 2.13: the subscription is cancelled */
+						cancel();
+						signal(e);
+						return;
+					}
+				}
+				missed = _wip.addAndGet(-missed);
+				if (missed == 0) {
+					return;
+				}
+			}
+		}
+
+		/**
+		 * Calls onError, or onComplete if error is null, without letting
+		 * the subscriber's exceptions through
+		 */
+		private void signal(final Throwable error) {
+			try {
+				if (error != null) {
+					_subscriber.onError(error);
+				} else {
+					_subscriber.onComplete();
+				}
+			} catch (RuntimeException e) {
+				Log.e(TAG, "subscriber failed: " + e);
+			}
+		}
+
+		@Override
+		public void request(final long n) {
+			if (n <= 0) {
+				fail(new IllegalArgumentException("non-positive request: " + n));
+				return;
+			}
+			synchronized (this) {
+				final long requested = _requested + n;
+				_requested = requested < 0 ? Long.MAX_VALUE : requested;
+				notifyAll();
+			}
+			drain();
+		}
+
+		@Override
+		public void cancel() {
+			synchronized (this) {
+				if (_cancelled) {
+					return;
+				}
+				_cancelled = true;
+				for (int i = 0; i < _ring.length; i++) {
+					_ring[i] = null;
+				}
+				_count = 0;
+				notifyAll();
+			}
+			_reader.remove(this);
+		}
+
+		@Override
+		public long getDroppedCount() {
+			return _dropped;
+		}
+	}
+
+	/**
+	 * Iterator that requests one item at a time, so frames that arrive while
+	 * the caller is busy stay in the subscription buffer under its overflow
+	 * policy
+	 */
+	public static final class BlockingIterator<T> implements Subscriber<T>,
+			Iterator<T>, Closeable {
+		private Subscription _subscription;
+		private Object _next;
+		private boolean _pending;
+		private boolean _done;
+		private Throwable _error;
+
+		@Override
+		public synchronized void onSubscribe(final Subscription subscription) {
+			_subscription = subscription;
+		}
+
+		@Override
+		public synchronized void onNext(final T item) {
+			_next = item;
+			_pending = false;
+			notifyAll();
+		}
+
+		@Override
+		public synchronized void onError(final Throwable error) {
+			_error = error;
+			_done = true;
+			notifyAll();
+		}
+
+		@Override
+		public synchronized void onComplete() {
+			_done = true;
+			notifyAll();
+		}
+
+		/**
+		 * Blocks until an item is available or the source terminated. An
+		 * interrupt ends the iteration with the interrupt status set.
+		 */
+		@Override
+		public boolean hasNext() {
+			final Subscription subscription;
+			synchronized (this) {
+				if (_next != null) {
+					return true;
+				}
+				if (_done) {
+					return throwIfFailed();
+				}
+				subscription = _pending ? null : _subscription;
+				_pending = true;
+			}
+			if (subscription != null) {
+				subscription.request(1);
+			}
+			synchronized (this) {
+				try {
+					while (_next == null && !_done) {
+						wait();
+					}
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					close();
+					return false;
+				}
+				return _next != null || throwIfFailed();
+			}
+		}
+
+		private boolean throwIfFailed() {
+			if (_error != null) {
+				throw new IllegalStateException("frame source failed", _error);
+			}
+			return false;
+		}
+
+		@SuppressWarnings("unchecked")
+		@Override
+		public T next() {
+			if (!hasNext()) {
+				throw new NoSuchElementException();
+			}
+			synchronized (this) {
+				final T item = (T) _next;
+				_next = null;
+				return item;
+			}
+		}
+
+		@Override
+		public void remove() {
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public void close() {
+			final Subscription subscription;
+			synchronized (this) {
+				_done = true;
+				subscription = _subscription;
+				notifyAll();
+			}
+			if (subscription != null) {
+				subscription.cancel();
+			}
+		}
+	}
+}
@@ -0,0 +1,145 @@
+package com.android.socketcan;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.Arrays;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import com.android.socketcan.CanSocket.CanFrame;
+
+/**
+ * The single thread that receives frames for all FramePublishers of one
+ * socket. It blocks for the first frame, then drains whatever else is queued
+ * without blocking and hands the whole batch to every subscription.
+ *
+ * A thread stopped because the last subscription left is joined before a
+ * new one starts; frames it already took off the socket go to whoever
+ * subscribed meanwhile. When a subscriber resubscribes from a callback on
+ * the stopped thread itself, that thread simply keeps running.
+ *
+ * A RuntimeException on the reader thread fails all subscriptions like an
+ * IOException does.
+ *
+ * @author aplex
+ *
+ */
+final class FrameReader implements Runnable {
+
+	private static final String TAG = "FrameReader";
+
+	private static final int BATCH_SIZE = 64;
+
+	private final CanSocket _socket;
+	private final CopyOnWriteArrayList<FramePublisher.FrameSubscription<?>> _subscriptions = new CopyOnWriteArrayList<FramePublisher.FrameSubscription<?>>();
+	private volatile Thread _thread;
+	/* stopped by remove(), possibly still holding a batch */
+	private Thread _stopped;
+
+	FrameReader(final CanSocket socket) {
+		this._socket = socket;
+	}
+
+	void add(final FramePublisher.FrameSubscription<?> subscription) {
+		final Thread stopped;
+		synchronized (this) {
+			_subscriptions.add(subscription);
+			if (_thread != null) {
+				return;
+			}
+			if (_stopped == Thread.currentThread()) {
+				/* joining ourselves would never return, revive instead */
+				_thread = _stopped;
+				_stopped = null;
+				/* the interrupt came from our own remove() */
+				Thread.interrupted();
+				return;
+			}
+			stopped = _stopped;
+		}
+		if (stopped != null) {
+			/* outside the lock, terminate() of the old thread takes it */
+			join(stopped);
+		}
+		synchronized (this) {
+			if (_stopped == stopped) {
+				_stopped = null;
+			}
+			if (_thread == null && !_subscriptions.isEmpty()) {
+				_thread = new Thread(this, TAG);
+				_thread.setDaemon(true);
+				_thread.start();
+			}
+		}
+	}
+
+	synchronized void remove(final FramePublisher.FrameSubscription<?> subscription) {
+		_subscriptions.remove(subscription);
+		if (_subscriptions.isEmpty() && _thread != null) {
+			/* recv() answers the interrupt with InterruptedIOException */
+			_thread.interrupt();
+			_stopped = _thread;
+			_thread = null;
+		}
+	}
+
+	private static void join(final Thread thread) {
+		boolean interrupted = false;
+		for (;;) {
+			try {
+				thread.join();
+				break;
+			} catch (InterruptedException e) {
+				interrupted = true;
+			}
+		}
+		if (interrupted) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	@Override
+	public void run() {
+		final Thread self = Thread.currentThread();
+		final CanFrame[] batch = new CanFrame[BATCH_SIZE];
+		try {
+			while (_thread == self) {
+				int n = 0;
+				batch[n++] = _socket.recv();
+				CanFrame frame;
+				while (n < BATCH_SIZE && (frame = _socket.tryRecv()) != null) {
+					batch[n++] = frame;
+				}
+				/*
+				 * Even when stopped: a new thread waits for this one, so
+				 * handing the batch to new subscribers keeps the order
+				 */
+				for (FramePublisher.FrameSubscription<?> subscription : _subscriptions) {
+					subscription.offer(batch, n);
+				}
+				Arrays.fill(batch, 0, n, null);
+			}
+		} catch (InterruptedIOException e) { /* stopped by remove() */
+		} catch (IOException e) {
+			terminate(e);
+		} catch (RuntimeException e) {
+			terminate(e);
+		}
+	}
+
+	private void terminate(final Exception e) {
+		synchronized (this) {
+			if (_thread != Thread.currentThread()) {
+				return;
+			}
+			_thread = null;
+		}
+		final boolean closed = e instanceof IOException && _socket.isClosed();
+		for (FramePublisher.FrameSubscription<?> subscription : _subscriptions) {
+			if (closed) {
+				subscription.complete();
+			} else {
+				subscription.fail(e);
+			}
+		}
+	}
+}
@@ -0,0 +1,403 @@
+package com.android.socketcan;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.Arrays;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import android.util.Log;
+
+import com.android.socketcan.CanSocket.CanFrame;
+import com.android.socketcan.CanSocket.CanId;
+
+/**
+ * The latest payload of each of a fixed set of CAN identifiers. Every
+ * identifier owns one slot of a flat table holding a sequence number, the
+ * receive time, the payload packed into a long and its length. A single
+ * writer updates the table, readers copy a slot with a seqlock: they retry
+ * while the sequence number is odd or changed during the copy. Reading
+ * never locks and never allocates.
+ *
+ * The slots are kept in one AtomicLongArray rather than raw off-heap
+ * memory, because Java 6 offers no fences for plain memory and the seqlock
+ * relies on the ordering of every word it reads.
+ *
+ * Remote and error frames are ignored, as are identifiers not given to the
+ * constructor.
+ *
+ * @author aplex
+ *
+ */
+public final class LastValueCache implements Closeable {
+
+	private static final String TAG = "LastValueCache";
+
+	/* words per slot */
+	private static final int SLOT = 4;
+	private static final int SEQ = 0;
+	private static final int TIME = 1;
+	private static final int DATA = 2;
+	private static final int LENGTH = 3;
+
+	private static final int NO_KEY = -1;
+
+	/**
+	 * Called on the writing thread when a payload differs from the previous
+	 * one of its identifier, including the first frame. Keep it short, every
+	 * other update waits for it. A RuntimeException is logged and the
+	 * remaining listeners still run.
+	 */
+	public interface ChangeListener {
+		/**
+		 * @param canId
+		 *            raw canid_t, EFF flag included
+		 * @param data
+		 *            payload, byte i in bits 8*i to 8*i+7
+		 * @param length
+		 * @param timestampNanos
+		 *            System.nanoTime() of the update
+		 */
+		void onChange(int canId, long data, int length, long timestampNanos);
+	}
+
+	/**
+	 * Reusable destination of read()
+	 */
+	public static final class Value {
+		private final byte[] _data = new byte[8];
+		private int _canId;
+		private int _length;
+		private long _timestampNanos;
+		private long _updates;
+
+		public int getCanId() {
+			return _canId;
+		}
+
+		/**
+		 * @return the payload buffer, valid up to getLength(); overwritten
+		 *         by the next read into this value
+		 */
+		public byte[] getData() {
+			return _data;
+		}
+
+		public int getLength() {
+			return _length;
+		}
+
+		/**
+		 * @return System.nanoTime() of the last update
+		 */
+		public long getTimestampNanos() {
+			return _timestampNanos;
+		}
+
+		/**
+		 * @return frames received for this identifier so far
+		 */
+		public long getUpdates() {
+			return _updates;
+		}
+	}
+
+	private final int[] _keys;
+	private final int[] _slots;
+	private final int _mask;
+	private final AtomicLongArray _table;
+	private final CopyOnWriteArrayList<ChangeListener> _listeners = new CopyOnWriteArrayList<ChangeListener>();
+	private final AtomicLong _ignored = new AtomicLong();
+	private volatile Thread _reader;
+
+	/**
+	 * @param canIds
+	 *            identifiers to keep, EFF ones must have the EFF flag set
+	 */
+	public LastValueCache(final CanId... canIds) {
+		int size = 1;
+		while (size < canIds.length * 2) {
+			size <<= 1;
+		}
+		_keys = new int[size];
+		_slots = new int[size];
+		_mask = size - 1;
+		Arrays.fill(_keys, NO_KEY);
+		int slots = 0;
+		for (CanId canId : canIds) {
+			final int key = key(canId._canId);
+			int i = hash(key) & _mask;
+			while (_keys[i] != NO_KEY && _keys[i] != key) {
+				i = (i + 1) & _mask;
+			}
+			if (_keys[i] == NO_KEY) {
+				_keys[i] = key;
+				_slots[i] = slots++ * SLOT;
+			}
+		}
+		_table = new AtomicLongArray(slots * SLOT);
+	}
+
+	/* the identifier without RTR/ERR, so that one key stands for one message */
+	private static int key(final int canId) {
+		if ((canId & CanSocket.CAN_EFF_FLAG) != 0) {
+			return canId & (CanSocket.CAN_EFF_FLAG | CanSocket.CAN_EFF_MASK);
+		}
+		return canId & CanSocket.CAN_SFF_MASK;
+	}
+
+	private static int hash(final int key) {
+		final int h = key * 0x9E3779B9;
+		return h ^ (h >>> 16);
+	}
+
+	/**
+	 * @return table offset of the slot or -1 if canId is not kept
+	 */
+	private int slotOf(final int canId) {
+		final int key = key(canId);
+		for (int i = hash(key) & _mask;; i = (i + 1) & _mask) {
+			final int k = _keys[i];
+			if (k == key) {
+				return _slots[i];
+			}
+			if (k == NO_KEY) {
+				return -1;
+			}
+		}
+	}
+
+	public void addChangeListener(final ChangeListener listener) {
+		_listeners.add(listener);
+	}
+
+	public void removeChangeListener(final ChangeListener listener) {
+		_listeners.remove(listener);
+	}
+
+	/**
+	 * Starts a thread that feeds every frame received on socket into the
+	 * cache; it must be the only writer
+	 *
+	 * @param socket
+	 */
+	public synchronized void start(final CanSocket socket) {
+		if (_reader != null) {
+			throw new IllegalStateException("already started");
+		}
+		_reader = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				runReader(socket);
+			}
+		}, TAG);
+		_reader.setDaemon(true);
+		_reader.start();
+	}
+
+	/**
+	 * Stops the thread started by start(); the socket stays open
+	 */
+	@Override
+	public void close() {
+		final Thread reader;
+		synchronized (this) {
+			reader = _reader;
+			_reader = null;
+		}
+		if (reader == null) {
+			return;
+		}
+		/* recv() answers the interrupt with InterruptedIOException */
+		reader.interrupt();
+		boolean interrupted = false;
+		for (;;) {
+			try {
+				reader.join();
+				break;
+			} catch (InterruptedException e) {
+				interrupted = true;
+			}
+		}
+		if (interrupted) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private void runReader(final CanSocket socket) {
+		final Thread self = Thread.currentThread();
+		try {
+			while (_reader == self) {
+				update(socket.recv());
+			}
+		} catch (InterruptedIOException e) { /* stopped by close() */
+		} catch (IOException e) {
+			if (!socket.isClosed()) {
+				Log.e(TAG, "reader stopped: " + e.getMessage());
+			}
+		} catch (RuntimeException e) {
+			Log.e(TAG, "reader stopped: " + e);
+		} finally {
+			/* lets start() run a new reader */
+			synchronized (this) {
+				if (_reader == self) {
+					_reader = null;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Stores a frame; only one thread may update a cache
+	 *
+	 * @param frame
+	 * @return false if the frame was ignored
+	 */
+	public boolean update(final CanFrame frame) {
+		final byte[] data = frame.getData();
+		return update(frame.getCanId()._canId, data, 0, data.length,
+				System.nanoTime());
+	}
+
+	/**
+	 * Stores a payload; only one thread may update a cache
+	 *
+	 * @param canId
+	 *            raw canid_t
+	 * @param data
+	 * @param offset
+	 * @param length
+	 *            at most 8
+	 * @param timestampNanos
+	 * @return false if the frame was ignored
+	 */
+	public boolean update(final int canId, final byte[] data,
+			final int offset, final int length, final long timestampNanos) {
+		if (length < 0 || length > 8) {
+			throw new IllegalArgumentException("illegal frame length");
+		}
+		final boolean noData = (canId & (CanSocket.CAN_RTR_FLAG | CanSocket.CAN_ERR_FLAG)) != 0;
+		final int slot = noData ? -1 : slotOf(canId);
+		if (slot < 0) {
+			_ignored.incrementAndGet();
+			return false;
+		}
+		long packed = 0;
+		for (int i = 0; i < length; i++) {
+			packed |= (data[offset + i] & 0xFFL) << (8 * i);
+		}
+		final long seq = _table.get(slot + SEQ);
+		final boolean changed = seq == 0
+				|| _table.get(slot + DATA) != packed
+				|| _table.get(slot + LENGTH) != length;
+		/* odd while the slot is inconsistent */
+		_table.set(slot + SEQ, seq + 1);
+		_table.set(slot + TIME, timestampNanos);
+		_table.set(slot + DATA, packed);
+		_table.set(slot + LENGTH, length);
+		_table.set(slot + SEQ, seq + 2);
+		if (changed) {
+			final int key = key(canId);
+			for (ChangeListener listener : _listeners) {
+				try {
+					listener.onChange(key, packed, length, timestampNanos);
+				} catch (RuntimeException e) {
+					Log.e(TAG, "listener failed: " + e);
+				}
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Copies the latest value of canId into value
+	 *
+	 * @param canId
+	 *            raw canid_t
+	 * @param value
+	 * @return false if nothing was received for canId yet or it is not kept
+	 */
+	public boolean read(final int canId, final Value value) {
+		final int slot = slotOf(canId);
+		if (slot < 0) {
+			return false;
+		}
+		long seq;
+		long time;
+		long data;
+		int length;
+		do {
+			seq = awaitStable(slot);
+			time = _table.get(slot + TIME);
+			data = _table.get(slot + DATA);
+			length = (int) _table.get(slot + LENGTH);
+		} while (_table.get(slot + SEQ) != seq);
+		if (seq == 0) {
+			return false;
+		}
+		value._canId = key(canId);
+		value._length = length;
+		value._timestampNanos = time;
+		value._updates = seq >>> 1;
+		for (int i = 0; i < 8; i++) {
+			value._data[i] = (byte) (data >>> (8 * i));
+		}
+		return true;
+	}
+
+	public boolean read(final CanId canId, final Value value) {
+		return read(canId._canId, value);
+	}
+
+	/**
+	 * The payload alone, for readers that decode signals with shifts
+	 *
+	 * @param canId
+	 *            raw canid_t
+	 * @return byte i in bits 8*i to 8*i+7, 0 if nothing was received
+	 */
+	public long readData(final int canId) {
+		final int slot = slotOf(canId);
+		if (slot < 0) {
+			return 0;
+		}
+		long seq;
+		long data;
+		do {
+			seq = awaitStable(slot);
+			data = _table.get(slot + DATA);
+		} while (_table.get(slot + SEQ) != seq);
+		return data;
+	}
+
+	/**
+	 * A cheap way to poll for news: the count only grows
+	 *
+	 * @param canId
+	 *            raw canid_t
+	 * @return frames received for canId, 0 if it is not kept
+	 */
+	public long getUpdates(final int canId) {
+		final int slot = slotOf(canId);
+		return slot < 0 ? 0 : awaitStable(slot) >>> 1;
+	}
+
+	/**
+	 * @return frames dropped because their identifier is not kept or they
+	 *         carry no data
+	 */
+	public long getIgnored() {
+		return _ignored.get();
+	}
+
+	private long awaitStable(final int slot) {
+		long seq;
+		while (((seq = _table.get(slot + SEQ)) & 1) != 0) {
+			/* the writer is in the middle of an update */
+			Thread.yield();
+		}
+		return seq;
+	}
+}
@@ -0,0 +1,162 @@
+package com.android.socketcan;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A log-linear histogram in the manner of HdrHistogram: every power of two
+ * is split into 32 equal buckets, so any recorded value is kept with a
+ * relative error below 1/32 over the whole range of a long, in a fixed
+ * array of counters.
+ *
+ * One thread records, any thread may read. Recording is a plain increment
+ * published with lazySet, readers see a slightly stale but never torn
+ * count per bucket.
+ *
+ * @author aplex
+ *
+ */
+public final class LatencyHistogram {
+
+	private static final int SUB_BUCKET_BITS = 5;
+	private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+	/* values below 2 * SUB_BUCKETS get one bucket each */
+	private static final int BUCKETS = (63 - SUB_BUCKET_BITS) * SUB_BUCKETS
+			+ 2 * SUB_BUCKETS;
+
+	private static final int COUNT = BUCKETS;
+	private static final int SUM = BUCKETS + 1;
+	private static final int MIN = BUCKETS + 2;
+	private static final int MAX = BUCKETS + 3;
+
+	private final AtomicLongArray _counts = new AtomicLongArray(BUCKETS + 4);
+
+	public LatencyHistogram() {
+		_counts.set(MIN, Long.MAX_VALUE);
+	}
+
+	static int bucketOf(final long value) {
+		if (value < 2 * SUB_BUCKETS) {
+			return (int) value;
+		}
+		final int shift = 63 - Long.numberOfLeadingZeros(value)
+				- SUB_BUCKET_BITS;
+		return shift * SUB_BUCKETS + (int) (value >>> shift);
+	}
+
+	/**
+	 * @return the smallest value that falls into bucket
+	 */
+	static long lowestOf(final int bucket) {
+		if (bucket < 2 * SUB_BUCKETS) {
+			return bucket;
+		}
+		final int shift = bucket / SUB_BUCKETS - 1;
+		return (long) (bucket % SUB_BUCKETS + SUB_BUCKETS) << shift;
+	}
+
+	/**
+	 * @return the largest value that falls into bucket
+	 */
+	static long highestOf(final int bucket) {
+		if (bucket < 2 * SUB_BUCKETS) {
+			return bucket;
+		}
+		final int shift = bucket / SUB_BUCKETS - 1;
+		return lowestOf(bucket) + (1L << shift) - 1;
+	}
+
+	/**
+	 * Only to be called from the recording thread
+	 *
+	 * @param value
+	 *            negative values are recorded as 0
+	 */
+	public void record(long value) {
+		if (value < 0) {
+			value = 0;
+		}
+		final int bucket = bucketOf(value);
+		_counts.lazySet(bucket, _counts.get(bucket) + 1);
+		_counts.lazySet(SUM, _counts.get(SUM) + value);
+		if (value < _counts.get(MIN)) {
+			_counts.lazySet(MIN, value);
+		}
+		if (value > _counts.get(MAX)) {
+			_counts.lazySet(MAX, value);
+		}
+		_counts.lazySet(COUNT, _counts.get(COUNT) + 1);
+	}
+
+	public long getCount() {
+		return _counts.get(COUNT);
+	}
+
+	/**
+	 * @return 0 if nothing was recorded
+	 */
+	public long getMin() {
+		return getCount() == 0 ? 0 : _counts.get(MIN);
+	}
+
+	public long getMax() {
+		return _counts.get(MAX);
+	}
+
+	public double getMean() {
+		final long count = getCount();
+		return count == 0 ? 0 : (double) _counts.get(SUM) / count;
+	}
+
+	/**
+	 * @param percentile
+	 *            0 to 100
+	 * @return a value at least as large as percentile percent of the
+	 *         recorded ones, 0 if nothing was recorded
+	 */
+	public long getValueAtPercentile(final double percentile) {
+		if (percentile < 0 || percentile > 100) {
+			throw new IllegalArgumentException("illegal percentile: "
+					+ percentile);
+		}
+		final long count = getCount();
+		if (count == 0) {
+			return 0;
+		}
+		final long rank = Math.max(1, (long) Math.ceil(percentile / 100
+				* count));
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += _counts.get(i);
+			if (seen >= rank) {
+				return Math.min(highestOf(i), getMax());
+			}
+		}
+		return getMax();
+	}
+
+	/**
+	 * Clears all counts; only to be called from the recording thread
+	 */
+	public void reset() {
+		for (int i = 0; i < BUCKETS + 4; i++) {
+			_counts.lazySet(i, 0);
+		}
+		_counts.set(MIN, Long.MAX_VALUE);
+	}
+
+	/**
+	 * Summary of a histogram of nanoseconds in microseconds
+	 */
+	@Override
+	public String toString() {
+		final TimeUnit ns = TimeUnit.NANOSECONDS;
+		return "LatencyHistogram [count=" + getCount() + ", min="
+				+ ns.toMicros(getMin()) + "us, mean="
+				+ ns.toMicros((long) getMean()) + "us, p50="
+				+ ns.toMicros(getValueAtPercentile(50)) + "us, p99="
+				+ ns.toMicros(getValueAtPercentile(99)) + "us, max="
+				+ ns.toMicros(getMax()) + "us]";
+	}
+}
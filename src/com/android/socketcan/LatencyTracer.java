@@ -0,0 +1,420 @@
+package com.android.socketcan;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import android.util.Log;
+
+import com.android.socketcan.CanSocket.CanFrame;
+
+/**
+ * Measures round trips of request/response protocols (diagnostics,
+ * command/acknowledge) by correlating the frames seen on one socket. Each
+ * rule names the request and the response by identifier and mask, like a
+ * CAN_RAW_FILTER entry, and optionally by key bytes that must be equal in
+ * both, e.g. a data identifier echoed in the reply. A response completes
+ * the oldest outstanding request of its rule with the same key; requests
+ * left unanswered for the rule's timeout are counted as timeouts.
+ *
+ * Requests are seen as loopback echoes: sent on the traced socket with
+ * setRecvOwnMsgsMode(true), or on another socket of this host with
+ * loopback on. The echo comes back once the frame went out, so the send
+ * queue doesn't count towards the latency. With setTimestampMode(true) the
+ * round trip is taken from the kernel timestamps of echo and response,
+ * otherwise from the time the tracer saw them. Kernel timestamps follow the
+ * wall clock; a round trip it stepped across falls back to the tracer's
+ * monotonic times and is counted as a clock step.
+ *
+ * onFrame() must be called from one thread, which start() provides. Rule
+ * statistics may be read from any thread.
+ *
+ * @author aplex
+ *
+ */
+public final class LatencyTracer implements Closeable {
+
+	private static final String TAG = "LatencyTracer";
+
+	/* outstanding requests per rule, the oldest are dropped beyond */
+	static final int MAX_PENDING = 64;
+
+	/* how often the reader thread expires requests on a quiet bus */
+	private static final int EXPIRE_INTERVAL_MS = 10;
+
+	/* how much a kernel round trip may exceed the one the tracer saw */
+	private static final long CLOCK_STEP_SLACK_NANOS = TimeUnit.MILLISECONDS
+			.toNanos(100);
+
+	/**
+	 * One request/response pair to trace, with its statistics
+	 */
+	public static final class Rule {
+		private final String _name;
+		private final int _requestId;
+		private final int _requestMask;
+		private final int _responseId;
+		private final int _responseMask;
+		private final long _timeoutNanos;
+		private final int _requestKeyOffset;
+		private final int _responseKeyOffset;
+		private final int _keyLength;
+
+		private final LatencyHistogram _histogram = new LatencyHistogram();
+
+		/* written by the tracing thread only */
+		private volatile long _timeouts;
+		private volatile long _unmatched;
+		private volatile long _overflows;
+		private volatile long _clockSteps;
+
+		/* outstanding requests, oldest first */
+		private final long[] _keys = new long[MAX_PENDING];
+		private final long[] _kernelMicros = new long[MAX_PENDING];
+		private final long[] _localNanos = new long[MAX_PENDING];
+		private int _pending;
+
+		Rule(final String name, final int requestId, final int requestMask,
+				final int responseId, final int responseMask,
+				final long timeoutNanos, final int requestKeyOffset,
+				final int responseKeyOffset, final int keyLength) {
+			this._name = name;
+			this._requestId = requestId;
+			this._requestMask = requestMask;
+			this._responseId = responseId;
+			this._responseMask = responseMask;
+			this._timeoutNanos = timeoutNanos;
+			this._requestKeyOffset = requestKeyOffset;
+			this._responseKeyOffset = responseKeyOffset;
+			this._keyLength = keyLength;
+		}
+
+		public String getName() {
+			return _name;
+		}
+
+		/**
+		 * @return round trips in nanoseconds
+		 */
+		public LatencyHistogram getHistogram() {
+			return _histogram;
+		}
+
+		/**
+		 * @return requests without a response within the timeout
+		 */
+		public long getTimeouts() {
+			return _timeouts;
+		}
+
+		/**
+		 * @return responses without an outstanding request
+		 */
+		public long getUnmatched() {
+			return _unmatched;
+		}
+
+		/**
+		 * @return requests dropped because MAX_PENDING were outstanding
+		 */
+		public long getOverflows() {
+			return _overflows;
+		}
+
+		/**
+		 * @return round trips whose kernel timestamps were off because the
+		 *         wall clock was set in between
+		 */
+		public long getClockSteps() {
+			return _clockSteps;
+		}
+
+		boolean isRequest(final int canId) {
+			return (canId & _requestMask) == (_requestId & _requestMask);
+		}
+
+		boolean isResponse(final int canId) {
+			return (canId & _responseMask) == (_responseId & _responseMask);
+		}
+
+		boolean holdsKey(final byte[] data, final int offset) {
+			return offset + _keyLength <= data.length;
+		}
+
+		/**
+		 * @return the key bytes packed into a long
+		 */
+		long key(final byte[] data, final int offset) {
+			long key = 0;
+			for (int i = 0; i < _keyLength; i++) {
+				key |= (data[offset + i] & 0xFFL) << (8 * i);
+			}
+			return key;
+		}
+
+		void begin(final long key, final long kernelMicros,
+				final long localNanos) {
+			if (_pending == MAX_PENDING) {
+				remove(0);
+				_overflows++;
+			}
+			_keys[_pending] = key;
+			_kernelMicros[_pending] = kernelMicros;
+			_localNanos[_pending] = localNanos;
+			_pending++;
+		}
+
+		/**
+		 * @return false if no request with this key is outstanding
+		 */
+		boolean complete(final long key, final long kernelMicros,
+				final long localNanos) {
+			for (int i = 0; i < _pending; i++) {
+				if (_keys[i] != key) {
+					continue;
+				}
+				final long local = localNanos - _localNanos[i];
+				long latency = local;
+				if (kernelMicros != 0 && _kernelMicros[i] != 0) {
+					latency = TimeUnit.MICROSECONDS.toNanos(kernelMicros
+							- _kernelMicros[i]);
+					if (latency < 0 || latency > local + CLOCK_STEP_SLACK_NANOS) {
+						latency = local;
+						_clockSteps++;
+					}
+				}
+				_histogram.record(latency);
+				remove(i);
+				return true;
+			}
+			return false;
+		}
+
+		void expire(final long now) {
+			int expired = 0;
+			while (expired < _pending
+					&& now - _localNanos[expired] > _timeoutNanos) {
+				expired++;
+			}
+			if (expired > 0) {
+				_pending -= expired;
+				System.arraycopy(_keys, expired, _keys, 0, _pending);
+				System.arraycopy(_kernelMicros, expired, _kernelMicros, 0,
+						_pending);
+				System.arraycopy(_localNanos, expired, _localNanos, 0,
+						_pending);
+				_timeouts += expired;
+			}
+		}
+
+		private void remove(final int i) {
+			final int tail = --_pending - i;
+			System.arraycopy(_keys, i + 1, _keys, i, tail);
+			System.arraycopy(_kernelMicros, i + 1, _kernelMicros, i, tail);
+			System.arraycopy(_localNanos, i + 1, _localNanos, i, tail);
+		}
+
+		@Override
+		public String toString() {
+			return "Rule [" + _name + ", " + _histogram + ", timeouts="
+					+ _timeouts + ", unmatched=" + _unmatched
+					+ ", overflows=" + _overflows + ", clockSteps="
+					+ _clockSteps + "]";
+		}
+	}
+
+	private volatile Rule[] _rules = new Rule[0];
+	private volatile Thread _reader;
+
+	/**
+	 * Adds a rule; may be called while tracing
+	 *
+	 * @param name
+	 * @param requestId
+	 *            raw canid_t
+	 * @param requestMask
+	 *            include CAN_EFF_FLAG to tell standard from extended
+	 * @param responseId
+	 * @param responseMask
+	 * @param timeout
+	 * @param unit
+	 * @return
+	 */
+	public Rule addRule(final String name, final int requestId,
+			final int requestMask, final int responseId,
+			final int responseMask, final long timeout, final TimeUnit unit) {
+		return addRule(name, requestId, requestMask, responseId,
+				responseMask, timeout, unit, 0, 0, 0);
+	}
+
+	/**
+	 * Adds a rule whose response must repeat key bytes of the request
+	 *
+	 * @param requestKeyOffset
+	 *            first key byte in the request payload
+	 * @param responseKeyOffset
+	 *            first key byte in the response payload
+	 * @param keyLength
+	 *            0 to 8 bytes
+	 * @return
+	 */
+	public Rule addRule(final String name, final int requestId,
+			final int requestMask, final int responseId,
+			final int responseMask, final long timeout, final TimeUnit unit,
+			final int requestKeyOffset, final int responseKeyOffset,
+			final int keyLength) {
+		if (keyLength < 0 || keyLength > 8 || requestKeyOffset < 0
+				|| responseKeyOffset < 0
+				|| requestKeyOffset + keyLength > 8
+				|| responseKeyOffset + keyLength > 8) {
+			throw new IllegalArgumentException("illegal key: " + keyLength
+					+ " bytes at " + requestKeyOffset + "/"
+					+ responseKeyOffset);
+		}
+		final long timeoutNanos = unit.toNanos(timeout);
+		if (timeoutNanos <= 0) {
+			throw new IllegalArgumentException("illegal timeout: " + timeout);
+		}
+		final Rule rule = new Rule(name, requestId, requestMask, responseId,
+				responseMask, timeoutNanos, requestKeyOffset,
+				responseKeyOffset, keyLength);
+		synchronized (this) {
+			final Rule[] rules = Arrays.copyOf(_rules, _rules.length + 1);
+			rules[rules.length - 1] = rule;
+			_rules = rules;
+		}
+		return rule;
+	}
+
+	public Rule[] getRules() {
+		return _rules.clone();
+	}
+
+	/**
+	 * Correlates one frame. A frame that completes a request is not taken
+	 * as a request itself; own messages are never responses.
+	 *
+	 * @param frame
+	 */
+	public void onFrame(final CanFrame frame) {
+		final long now = System.nanoTime();
+		final Rule[] rules = _rules;
+		final int canId = frame.getCanId()._canId;
+		final byte[] data = frame.getData();
+		final long kernelMicros = frame.getTimestamp();
+		final boolean own = frame.isOwnMessage();
+		for (Rule rule : rules) {
+			rule.expire(now);
+		}
+		boolean handled = false;
+		if (!own) {
+			for (Rule rule : rules) {
+				final int offset = rule._responseKeyOffset;
+				if (rule.isResponse(canId) && rule.holdsKey(data, offset)
+						&& rule.complete(rule.key(data, offset),
+								kernelMicros, now)) {
+					handled = true;
+				}
+			}
+			if (handled) {
+				return;
+			}
+		}
+		for (Rule rule : rules) {
+			final int offset = rule._requestKeyOffset;
+			if (rule.isRequest(canId) && rule.holdsKey(data, offset)) {
+				rule.begin(rule.key(data, offset), kernelMicros, now);
+				handled = true;
+			}
+		}
+		if (!handled && !own) {
+			for (Rule rule : rules) {
+				if (rule.isResponse(canId)) {
+					rule._unmatched++;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Counts outstanding requests past their timeout; onFrame() does this
+	 * too, so callers feeding frames themselves only need it on a quiet bus
+	 */
+	public void expire() {
+		final long now = System.nanoTime();
+		for (Rule rule : _rules) {
+			rule.expire(now);
+		}
+	}
+
+	/**
+	 * Starts a thread that traces every frame received on socket
+	 *
+	 * @param socket
+	 *            should have setRecvOwnMsgsMode(true) if requests are sent
+	 *            on it
+	 */
+	public synchronized void start(final CanSocket socket) {
+		if (_reader != null) {
+			throw new IllegalStateException("already started");
+		}
+		_reader = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				trace(socket);
+			}
+		}, TAG);
+		_reader.setDaemon(true);
+		_reader.start();
+	}
+
+	private void trace(final CanSocket socket) {
+		final Thread self = Thread.currentThread();
+		try {
+			while (_reader == self) {
+				final CanFrame frame = socket.recv(EXPIRE_INTERVAL_MS,
+						TimeUnit.MILLISECONDS);
+				if (frame != null) {
+					onFrame(frame);
+				} else {
+					expire();
+				}
+			}
+		} catch (InterruptedIOException e) { /* stopped by close() */
+		} catch (IOException e) {
+			if (!socket.isClosed()) {
+				Log.e(TAG, "tracer stopped: " + e.getMessage());
+			}
+		}
+	}
+
+	/**
+	 * Stops the thread started by start(); the socket stays open
+	 */
+	@Override
+	public void close() {
+		final Thread reader;
+		synchronized (this) {
+			reader = _reader;
+			_reader = null;
+		}
+		if (reader == null) {
+			return;
+		}
+		reader.interrupt();
+		boolean interrupted = false;
+		for (;;) {
+			try {
+				reader.join();
+				break;
+			} catch (InterruptedException e) {
+				interrupted = true;
+			}
+		}
+		if (interrupted) {
+			Thread.currentThread().interrupt();
+		}
+	}
+}
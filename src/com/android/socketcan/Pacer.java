@@ -0,0 +1,50 @@
+package com.android.socketcan;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Waits for System.nanoTime() deadlines more precisely than sleep(): parks
+ * while the deadline is far away and spins for the last stretch, where timer
+ * slack would otherwise make the wake-up late.
+ *
+ * @author aplex
+ *
+ */
+final class Pacer {
+
+	/* below this we spin instead of parking */
+	static final long SPIN_NANOS = TimeUnit.MICROSECONDS.toNanos(100);
+
+	private Pacer() {
+	}
+
+	static void pauseUntil(final long deadline) {
+		for (;;) {
+			final long remaining = deadline - System.nanoTime();
+			if (remaining <= 0) {
+				return;
+			}
+			if (remaining > SPIN_NANOS) {
+				LockSupport.parkNanos(remaining - SPIN_NANOS);
+			}
+		}
+	}
+
+	/**
+	 * Nanoseconds a frame occupies the bus, stuff bits not counted
+	 *
+	 * @param extended
+	 *            29 bit identifier
+	 * @param dataLength
+	 *            payload bytes, 0 for remote frames
+	 * @param bitrate
+	 *            bits per second
+	 * @return
+	 */
+	static long frameNanos(final boolean extended, final int dataLength,
+			final int bitrate) {
+		final long bits = (extended ? 67 : 47) + dataLength * 8;
+		return bits * TimeUnit.SECONDS.toNanos(1) / bitrate;
+	}
+}
@@ -0,0 +1,470 @@
+package com.android.socketcan;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import android.util.Log;
+
+import com.android.socketcan.CanSocket.CanFrame;
+
+/**
+ * Reads many sockets with a few threads. Socket j belongs to shard j % M and
+ * is only ever read by that shard's thread, which can be pinned to one cpu
+ * so that the socket's data stays in one core's cache. A shard waits for all
+ * of its SocketCAN sockets with a single poll() and then drains the readable
+ * ones in batches.
+ *
+ * Sockets without a file descriptor, e.g. ones on a VirtualCanBus, can't be
+ * polled; a shard holding any of them checks its sockets in turn and parks
+ * briefly when all are empty.
+ *
+ * The pool never closes the sockets. Closing a socket detaches it from its
+ * shard, which reports it through FrameHandler.onDetached.
+ *
+ * @author aplex
+ *
+ */
+public final class ShardedReaderPool implements Closeable {
+
+	private static final String TAG = "ShardedReaderPool";
+
+	private static final int BATCH_SIZE = 64;
+
+	/* idle wait of shards that have to poll by hand */
+	private static final long IDLE_PARK_NANOS = TimeUnit.MICROSECONDS
+			.toNanos(200);
+
+	/* longest a shard waits for another thread to consume its wakeup */
+	private static final long WAKEUP_WAIT_NANOS = TimeUnit.MILLISECONDS
+			.toNanos(1);
+
+	/**
+	 * Called on the shard threads; a slow handler delays every socket of
+	 * its shard
+	 */
+	public interface FrameHandler {
+		void onFrame(CanSocket socket, CanFrame frame);
+
+		/**
+		 * The socket left the pool
+		 *
+		 * @param socket
+		 * @param error
+		 *            null if the socket was closed
+		 */
+		void onDetached(CanSocket socket, IOException error);
+	}
+
+	public static final class ShardStats {
+		private final int _shard;
+		private final int _cpu;
+		private final boolean _pinned;
+		private final int _sockets;
+		private final long _frames;
+		private final long _waits;
+		private final long _rxDropped;
+		private final long _elapsedNanos;
+
+		ShardStats(final int shard, final int cpu, final boolean pinned,
+				final int sockets, final long frames, final long waits,
+				final long rxDropped, final long elapsedNanos) {
+			this._shard = shard;
+			this._cpu = cpu;
+			this._pinned = pinned;
+			this._sockets = sockets;
+			this._frames = frames;
+			this._waits = waits;
+			this._rxDropped = rxDropped;
+			this._elapsedNanos = elapsedNanos;
+		}
+
+		public int getShard() {
+			return _shard;
+		}
+
+		/**
+		 * @return the requested cpu, -1 for none
+		 */
+		public int getCpu() {
+			return _cpu;
+		}
+
+		/**
+		 * @return whether sched_setaffinity succeeded
+		 */
+		public boolean isPinned() {
+			return _pinned;
+		}
+
+		/**
+		 * @return sockets still attached
+		 */
+		public int getSockets() {
+			return _sockets;
+		}
+
+		public long getFrames() {
+			return _frames;
+		}
+
+		/**
+		 * @return how often the shard had to wait for frames
+		 */
+		public long getWaits() {
+			return _waits;
+		}
+
+		/**
+		 * @return frames the kernel dropped on the attached sockets
+		 */
+		public long getRxDropped() {
+			return _rxDropped;
+		}
+
+		public double getFramesPerSecond() {
+			return _elapsedNanos == 0 ? 0 : _frames * 1e9 / _elapsedNanos;
+		}
+
+		@Override
+		public String toString() {
+			return "ShardStats [shard=" + _shard + ", cpu=" + _cpu
+					+ (_pinned ? " (pinned)" : "") + ", sockets=" + _sockets
+					+ ", frames=" + _frames + ", waits=" + _waits
+					+ ", rxDropped=" + _rxDropped + ", frames/s="
+					+ (long) getFramesPerSecond() + "]";
+		}
+	}
+
+	private final FrameHandler _handler;
+	private final Shard[] _shards;
+	private volatile boolean _running;
+	private boolean _started;
+
+	/**
+	 * Pins shard i to cpu i modulo the number of processors
+	 *
+	 * @param sockets
+	 * @param threads
+	 * @param handler
+	 */
+	public ShardedReaderPool(final CanSocket[] sockets, final int threads,
+			final FrameHandler handler) {
+		this(sockets, defaultCpus(threads), handler);
+	}
+
+	/**
+	 * @param sockets
+	 * @param cpus
+	 *            one entry per shard thread, -1 leaves the thread unpinned
+	 * @param handler
+	 */
+	public ShardedReaderPool(final CanSocket[] sockets, final int[] cpus,
+			final FrameHandler handler) {
+		if (sockets.length == 0 || cpus.length == 0) {
+			throw new IllegalArgumentException("no sockets or no threads");
+		}
+		this._handler = handler;
+		/* more threads than sockets would only leave some idle */
+		_shards = new Shard[Math.min(cpus.length, sockets.length)];
+		for (int i = 0; i < _shards.length; i++) {
+			final int count = (sockets.length - i + _shards.length - 1)
+					/ _shards.length;
+			final CanSocket[] assigned = new CanSocket[count];
+			for (int j = 0; j < count; j++) {
+				assigned[j] = sockets[i + j * _shards.length];
+			}
+			_shards[i] = new Shard(i, cpus[i], assigned);
+		}
+	}
+
+	private static int[] defaultCpus(final int threads) {
+		if (threads <= 0) {
+			throw new IllegalArgumentException("illegal thread count: "
+					+ threads);
+		}
+		final int processors = Runtime.getRuntime().availableProcessors();
+		final int[] cpus = new int[threads];
+		for (int i = 0; i < threads; i++) {
+			cpus[i] = i % processors;
+		}
+		return cpus;
+	}
+
+	public synchronized void start() throws IOException {
+		if (_started) {
+			throw new IllegalStateException("already started");
+		}
+		_started = true;
+		_running = true;
+		try {
+			for (Shard shard : _shards) {
+				shard.open();
+			}
+		} catch (IOException e) {
+			closeWakeups();
+			throw e;
+		}
+		for (Shard shard : _shards) {
+			shard._thread.start();
+		}
+	}
+
+	public int getShardCount() {
+		return _shards.length;
+	}
+
+	public ShardStats getShardStats(final int shard) {
+		return _shards[shard].stats();
+	}
+
+	/**
+	 * Stops and joins the shard threads; the sockets stay open
+	 */
+	@Override
+	public synchronized void close() throws IOException {
+		if (!_running) {
+			return;
+		}
+		_running = false;
+		for (Shard shard : _shards) {
+			shard.wakeup();
+		}
+		boolean interrupted = false;
+		for (Shard shard : _shards) {
+			for (;;) {
+				try {
+					shard._thread.join();
+					break;
+				} catch (InterruptedException e) {
+					interrupted = true;
+				}
+			}
+		}
+		closeWakeups();
+		if (interrupted) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private void closeWakeups() throws IOException {
+		for (Shard shard : _shards) {
+			if (shard._wakeFd != -1) {
+				CanSocket._close(shard._wakeFd);
+				shard._wakeFd = -1;
+			}
+		}
+	}
+
+	private final class Shard implements Runnable {
+		private final int _index;
+		private final int _cpu;
+		private final Thread _thread;
+		private final CanSocket[] _assigned;
+
+		/* written by the shard thread only */
+		private CanSocket[] _active;
+		private volatile int _activeCount;
+		private volatile long _frames;
+		private volatile long _waits;
+		private volatile boolean _pinned;
+		private volatile long _startedAt;
+
+		private int _wakeFd = -1;
+		private int[] _fds;
+		private int[] _ready;
+
+		Shard(final int index, final int cpu, final CanSocket[] assigned) {
+			this._index = index;
+			this._cpu = cpu;
+			this._assigned = assigned;
+			_thread = new Thread(this, TAG + "-" + index);
+			_thread.setDaemon(true);
+		}
+
+		void open() throws IOException {
+			if (CanSocket.NATIVE_AVAILABLE) {
+				_wakeFd = CanSocket._openWakeup();
+			}
+		}
+
+		void wakeup() {
+			if (_wakeFd != -1) {
+				try {
+					CanSocket._signalWakeup(_wakeFd);
+				} catch (IOException e) { /* EMPTY */
+				}
+			}
+			LockSupport.unpark(_thread);
+		}
+
+		ShardStats stats() {
+			long dropped = 0;
+			for (CanSocket socket : _assigned) {
+				try {
+					dropped += socket.getRxDropped();
+				} catch (IOException e) { /* closed */
+				}
+			}
+			final long startedAt = _startedAt;
+			return new ShardStats(_index, _cpu, _pinned, _activeCount,
+					_frames, _waits, dropped,
+					startedAt == 0 ? 0 : System.nanoTime() - startedAt);
+		}
+
+		@Override
+		public void run() {
+			_startedAt = System.nanoTime();
+			pin();
+			_active = new CanSocket[_assigned.length];
+			boolean pollable = _wakeFd != -1;
+			for (CanSocket socket : _assigned) {
+				try {
+					/* keeps the fds valid while we poll them, close() wakes us */
+					socket.acquire();
+				} catch (IOException e) {
+					_handler.onDetached(socket, null);
+					continue;
+				}
+				_active[_activeCount++] = socket;
+				pollable &= socket.nativeTransport() != null;
+			}
+			try {
+				if (pollable) {
+					runPolling();
+				} else {
+					runScanning();
+				}
+			} catch (IOException e) {
+				Log.e(TAG, "shard " + _index + " stopped: " + e.getMessage());
+				while (_activeCount > 0) {
+					detach(_activeCount - 1, e);
+				}
+			} finally {
+				while (_activeCount > 0) {
+					detach(_activeCount - 1, null);
+				}
+			}
+		}
+
+		private void pin() {
+			if (_cpu < 0 || !CanSocket.NATIVE_AVAILABLE) {
+				return;
+			}
+			try {
+				CanSocket._setThreadAffinity(_cpu);
+				_pinned = true;
+			} catch (IOException e) {
+				Log.w(TAG, "can't pin shard " + _index + " to cpu " + _cpu
+						+ ": " + e.getMessage());
+			} catch (IllegalArgumentException e) {
+				Log.w(TAG, "can't pin shard " + _index + " to cpu " + _cpu
+						+ ": " + e.getMessage());
+			}
+		}
+
+		/**
+		 * Waits with one poll() on every socket, every socket's wakeup
+		 * eventfd (signalled by CanSocket.close) and the shard's own eventfd.
+		 * A socket's wakeup that is set while the socket is open belongs to
+		 * a thread interrupted in recv() on it; the shard leaves it to that
+		 * thread instead of draining it or polling it again and again.
+		 */
+		private void runPolling() throws IOException {
+			buildPollSet();
+			while (_running && _activeCount > 0) {
+				_waits++;
+				CanSocket._pollSockets(_fds, _ready, -1);
+				if (_ready[_fds.length - 1] != 0) {
+					CanSocket._drainWakeup(_wakeFd);
+					continue;
+				}
+				boolean changed = false;
+				for (int i = _activeCount - 1; i >= 0; i--) {
+					if (_ready[2 * i + 1] != 0 && _active[i].isClosed()) {
+						detach(i, null);
+						changed = true;
+					} else if (_ready[2 * i] != 0 && !drain(i)) {
+						changed = true;
+					} else if (_ready[2 * i + 1] != 0) {
+						_active[i].awaitWakeupConsumed(System.nanoTime()
+								+ WAKEUP_WAIT_NANOS, true);
+					}
+				}
+				if (changed) {
+					buildPollSet();
+				}
+			}
+		}
+
+		private void buildPollSet() {
+			_fds = new int[2 * _activeCount + 1];
+			_ready = new int[_fds.length];
+			for (int i = 0; i < _activeCount; i++) {
+				final CanSocket.NativeTransport transport = _active[i]
+						.nativeTransport();
+				_fds[2 * i] = transport.fd();
+				_fds[2 * i + 1] = transport.wakeFd();
+			}
+			_fds[_fds.length - 1] = _wakeFd;
+		}
+
+		private void runScanning() {
+			while (_running && _activeCount > 0) {
+				final long before = _frames;
+				for (int i = _activeCount - 1; i >= 0; i--) {
+					drain(i);
+				}
+				if (_frames == before) {
+					_waits++;
+					LockSupport.parkNanos(this, IDLE_PARK_NANOS);
+				}
+			}
+		}
+
+		/**
+		 * Hands up to BATCH_SIZE queued frames of socket i to the handler
+		 *
+		 * @return false if the socket was detached
+		 */
+		private boolean drain(final int i) {
+			final CanSocket socket = _active[i];
+			long frames = _frames;
+			try {
+				for (int n = 0; n < BATCH_SIZE; n++) {
+					final CanFrame frame = socket.tryRecv();
+					if (frame == null) {
+						break;
+					}
+					frames++;
+					try {
+						_handler.onFrame(socket, frame);
+					} catch (RuntimeException e) {
+						Log.e(TAG, "frame handler failed", e);
+					}
+				}
+			} catch (IOException e) {
+				detach(i, socket.isClosed() ? null : e);
+				return false;
+			} finally {
+				_frames = frames;
+			}
+			return true;
+		}
+
+		private void detach(final int i, final IOException error) {
+			final CanSocket socket = _active[i];
+			_active[i] = _active[--_activeCount];
+			_active[_activeCount] = null;
+			try {
+				socket.release();
+			} catch (IOException e) {
+				Log.e(TAG, "closing detached socket: " + e.getMessage());
+			}
+			if (error != null || socket.isClosed()) {
+				_handler.onDetached(socket, error);
+			}
+		}
+	}
+}
@@ -0,0 +1,605 @@
+package com.android.socketcan;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import com.android.socketcan.CanSocket.CanId;
+import com.android.socketcan.CanSocket.CanInterface;
+
+/**
+ * Generates test traffic in the manner of cangen: background frames with a
+ * fixed, incrementing or random identifier, a length distribution and a
+ * payload pattern, plus periodic frames from a schedule. The background
+ * frames are paced to a frame rate or to a share of the bus, every frame
+ * on an absolute schedule so that waiting errors don't add up.
+ *
+ * run() sends in the calling thread and reports the achieved rate next to
+ * the requested one. Not thread safe; use one instance per sending thread.
+ *
+ * @author aplex
+ *
+ */
+public final class TrafficGenerator {
+
+	public enum IdMode {
+		FIXED, INCREMENT, RANDOM
+	}
+
+	public enum PayloadMode {
+		/* the bytes given to setPayload() */
+		FIXED,
+		/* a little-endian counter over the frame's bytes */
+		INCREMENT,
+		RANDOM
+	}
+
+	/* how far pacing may fall behind before the schedule restarts from now */
+	private static final long MAX_LAG_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+
+	private static final long MIN_BACKOFF_NANOS = TimeUnit.MICROSECONDS
+			.toNanos(50);
+	private static final long MAX_BACKOFF_NANOS = TimeUnit.MILLISECONDS
+			.toNanos(10);
+
+	public static final class Report {
+		private final long _frames;
+		private final long _periodicFrames;
+		private final long _bytes;
+		private final long _busNanos;
+		private final long _backoffs;
+		private final long _slips;
+		private final long _maxLatenessNanos;
+		private final long _elapsedNanos;
+		private final double _requestedRate;
+		private final int _requestedBusLoad;
+
+		Report(final long frames, final long periodicFrames, final long bytes,
+				final long busNanos, final long backoffs, final long slips,
+				final long maxLatenessNanos, final long elapsedNanos,
+				final double requestedRate, final int requestedBusLoad) {
+			this._frames = frames;
+			this._periodicFrames = periodicFrames;
+			this._bytes = bytes;
+			this._busNanos = busNanos;
+			this._backoffs = backoffs;
+			this._slips = slips;
+			this._maxLatenessNanos = maxLatenessNanos;
+			this._elapsedNanos = elapsedNanos;
+			this._requestedRate = requestedRate;
+			this._requestedBusLoad = requestedBusLoad;
+		}
+
+		/**
+		 * @return all frames sent, periodic ones included
+		 */
+		public long getFrames() {
+			return _frames;
+		}
+
+		public long getPeriodicFrames() {
+			return _periodicFrames;
+		}
+
+		public long getBytes() {
+			return _bytes;
+		}
+
+		/**
+		 * @return how often the device queue was full
+		 */
+		public long getBackoffs() {
+			return _backoffs;
+		}
+
+		/**
+		 * @return how often pacing fell so far behind that the schedule was
+		 *         restarted
+		 */
+		public long getSlips() {
+			return _slips;
+		}
+
+		/**
+		 * @return worst delay of a frame behind its scheduled time
+		 */
+		public long getMaxLatenessNanos() {
+			return _maxLatenessNanos;
+		}
+
+		public long getElapsedNanos() {
+			return _elapsedNanos;
+		}
+
+		/**
+		 * @return all frames per second, periodic ones included
+		 */
+		public double getFramesPerSecond() {
+			return _elapsedNanos == 0 ? 0 : _frames * 1e9 / _elapsedNanos;
+		}
+
+		/**
+		 * @return frames per second without the periodic ones, the rate
+		 *         setRate() paces
+		 */
+		public double getBackgroundFramesPerSecond() {
+			return _elapsedNanos == 0 ? 0 : (_frames - _periodicFrames) * 1e9
+					/ _elapsedNanos;
+		}
+
+		/**
+		 * @return background frames per second asked for with setRate(), 0
+		 *         if unpaced or paced by bus load; compare it with
+		 *         getBackgroundFramesPerSecond()
+		 */
+		public double getRequestedFramesPerSecond() {
+			return _requestedRate;
+		}
+
+		/**
+		 * @return percent of the bus taken by the frames sent, 0 without a
+		 *         bitrate
+		 */
+		public double getBusLoad() {
+			return _elapsedNanos == 0 ? 0 : _busNanos * 100.0 / _elapsedNanos;
+		}
+
+		/**
+		 * @return percent asked for with setBusLoad(), 0 if not paced by bus
+		 *         load
+		 */
+		public int getRequestedBusLoad() {
+			return _requestedBusLoad;
+		}
+
+		@Override
+		public String toString() {
+			final StringBuilder sb = new StringBuilder("Report [frames=")
+					.append(_frames).append(", periodic=")
+					.append(_periodicFrames).append(", frames/s=")
+					.append((long) getFramesPerSecond());
+			if (_periodicFrames > 0) {
+				sb.append(", background/s=").append(
+						(long) getBackgroundFramesPerSecond());
+			}
+			if (_requestedRate > 0) {
+				sb.append(" of ").append((long) _requestedRate);
+			}
+			if (_busNanos > 0) {
+				sb.append(", load=")
+						.append(Math.round(getBusLoad() * 10) / 10.0)
+						.append('%');
+				if (_requestedBusLoad > 0) {
+					sb.append(" of ").append(_requestedBusLoad).append('%');
+				}
+			}
+			return sb.append(", backoffs=").append(_backoffs)
+					.append(", slips=").append(_slips).append(", maxLate=")
+					.append(TimeUnit.NANOSECONDS.toMicros(_maxLatenessNanos))
+					.append("us]").toString();
+		}
+	}
+
+	private static final class Periodic {
+		final int _canId;
+		final byte[] _data;
+		final long _periodNanos;
+		long _due;
+
+		Periodic(final int canId, final byte[] data, final long periodNanos) {
+			this._canId = canId;
+			this._data = data;
+			this._periodNanos = periodNanos;
+		}
+	}
+
+	private final CanSocket _socket;
+	private final CanInterface _canIf;
+	private final Random _random = new Random();
+	private final List<Periodic> _schedule = new ArrayList<Periodic>();
+
+	private IdMode _idMode = IdMode.FIXED;
+	private int _idFrom = 0x100;
+	private int _idTo = 0x100;
+	private boolean _extended;
+	private boolean _background = true;
+
+	/* cumulative weights of the lengths 0 to 8 */
+	private final int[] _lengthWeights = new int[9];
+	private PayloadMode _payloadMode = PayloadMode.INCREMENT;
+	private final byte[] _payload = new byte[8];
+
+	private long _gapNanos;
+	private int _bitrate;
+	private int _busLoadPercent;
+
+	/* state of the running generator */
+	private final byte[] _data = new byte[8];
+	private int _nextId;
+	private long _counter;
+	private long _backoffNanos = MIN_BACKOFF_NANOS;
+	private long _frames;
+	private long _periodicFrames;
+	private long _bytes;
+	private long _busNanos;
+	private long _backoffs;
+	private long _slips;
+	private long _maxLateness;
+
+	public TrafficGenerator(final CanSocket socket, final CanInterface canIf) {
+		this._socket = socket;
+		this._canIf = canIf;
+		setLength(8);
+	}
+
+	/**
+	 * Background frames with one identifier
+	 *
+	 * @param canId
+	 * @return
+	 */
+	public TrafficGenerator setId(final CanId canId) {
+		final boolean extended = canId.isSetEFFSFF();
+		final int id = extended ? canId.getCanId_EFF() : canId.getCanId_SFF();
+		return setIds(IdMode.FIXED, id, id, extended);
+	}
+
+	/**
+	 * Background frames with identifiers in [from, to], counting up and
+	 * wrapping around or drawn at random
+	 *
+	 * @param mode
+	 * @param from
+	 * @param to
+	 * @param extended
+	 *            29 bit identifiers
+	 * @return
+	 */
+	public TrafficGenerator setIds(final IdMode mode, final int from,
+			final int to, final boolean extended) {
+		final int max = extended ? CanSocket.CAN_EFF_MASK
+				: CanSocket.CAN_SFF_MASK;
+		if (from < 0 || to < from || to > max) {
+			throw new IllegalArgumentException("illegal id range: " + from
+					+ " to " + to);
+		}
+		this._idMode = mode;
+		this._idFrom = from;
+		this._idTo = to;
+		this._extended = extended;
+		return this;
+	}
+
+	/**
+	 * Only send the periodic schedule
+	 */
+	public TrafficGenerator disableBackground() {
+		this._background = false;
+		return this;
+	}
+
+	public TrafficGenerator setLength(final int length) {
+		if (length < 0 || length > 8) {
+			throw new IllegalArgumentException("illegal frame length: "
+					+ length);
+		}
+		final int[] weights = new int[9];
+		weights[length] = 1;
+		return setLengthDistribution(weights);
+	}
+
+	/**
+	 * @param weights
+	 *            relative frequency of the lengths 0, 1, ... 8; missing
+	 *            entries count as 0
+	 * @return
+	 */
+	public TrafficGenerator setLengthDistribution(final int... weights) {
+		if (weights.length > 9) {
+			throw new IllegalArgumentException("more than 9 length weights");
+		}
+		int sum = 0;
+		for (int i = 0; i < 9; i++) {
+			final int weight = i < weights.length ? weights[i] : 0;
+			if (weight < 0) {
+				throw new IllegalArgumentException("negative length weight");
+			}
+			sum += weight;
+			_lengthWeights[i] = sum;
+		}
+		if (sum == 0) {
+			throw new IllegalArgumentException("all length weights are 0");
+		}
+		return this;
+	}
+
+	public TrafficGenerator setPayload(final PayloadMode mode) {
+		this._payloadMode = mode;
+		return this;
+	}
+
+	/**
+	 * Fixed payload, cut to each frame's length and padded with zeros
+	 */
+	public TrafficGenerator setPayload(final byte[] payload) {
+		if (payload.length > 8) {
+			throw new IllegalArgumentException("payload longer than 8 bytes");
+		}
+		Arrays.fill(_payload, (byte) 0);
+		System.arraycopy(payload, 0, _payload, 0, payload.length);
+		this._payloadMode = PayloadMode.FIXED;
+		return this;
+	}
+
+	/**
+	 * Makes random identifiers, lengths and payloads repeatable
+	 */
+	public TrafficGenerator setSeed(final long seed) {
+		_random.setSeed(seed);
+		return this;
+	}
+
+	/**
+	 * Paces background frames to a fixed rate
+	 *
+	 * @param framesPerSecond
+	 *            0 sends as fast as the device queue allows
+	 * @return
+	 */
+	public TrafficGenerator setRate(final double framesPerSecond) {
+		if (framesPerSecond < 0 || framesPerSecond > 1e9) {
+			throw new IllegalArgumentException("illegal rate: "
+					+ framesPerSecond);
+		}
+		this._gapNanos = framesPerSecond == 0 ? 0 : (long) (1e9 / framesPerSecond);
+		this._busLoadPercent = 0;
+		return this;
+	}
+
+	/**
+	 * Paces background frames so that all frames together take
+	 * busLoadPercent of a bus running at bitrate; the bitrate alone also
+	 * makes the report show the achieved bus load
+	 *
+	 * @param bitrate
+	 * @param busLoadPercent
+	 *            0 to only set the bitrate
+	 * @return
+	 */
+	public TrafficGenerator setBusLoad(final int bitrate,
+			final int busLoadPercent) {
+		if (bitrate <= 0 || busLoadPercent < 0 || busLoadPercent > 100) {
+			throw new IllegalArgumentException("illegal bus load: " + bitrate
+					+ " bit/s at " + busLoadPercent + "%");
+		}
+		this._bitrate = bitrate;
+		this._busLoadPercent = busLoadPercent;
+		if (busLoadPercent > 0) {
+			this._gapNanos = 0;
+		}
+		return this;
+	}
+
+	/**
+	 * Adds a frame sent every period, independent of the background pacing
+	 *
+	 * @param canId
+	 * @param data
+	 *            at most 8 bytes, copied
+	 * @param period
+	 * @param unit
+	 * @return
+	 */
+	public TrafficGenerator addPeriodic(final CanId canId, final byte[] data,
+			final long period, final TimeUnit unit) {
+		if (data.length > 8) {
+			throw new IllegalArgumentException("payload longer than 8 bytes");
+		}
+		final long periodNanos = unit.toNanos(period);
+		if (periodNanos <= 0) {
+			throw new IllegalArgumentException("illegal period: " + period);
+		}
+		_schedule.add(new Periodic(canId._canId, data.clone(), periodNanos));
+		return this;
+	}
+
+	/**
+	 * Generates traffic for a while
+	 *
+	 * @param duration
+	 * @param unit
+	 * @return
+	 * @throws InterruptedIOException
+	 *             if the thread was interrupted
+	 * @throws IOException
+	 */
+	public Report run(final long duration, final TimeUnit unit)
+			throws IOException {
+		return run(Long.MAX_VALUE, unit.toNanos(duration));
+	}
+
+	/**
+	 * Generates a number of background frames, or periodic frames if the
+	 * background is disabled
+	 *
+	 * @param frames
+	 * @return
+	 * @throws IOException
+	 */
+	public Report run(final long frames) throws IOException {
+		return run(frames, Long.MAX_VALUE);
+	}
+
+	private Report run(final long frames, final long durationNanos)
+			throws IOException {
+		if (!_background && _schedule.isEmpty()) {
+			throw new IllegalStateException("nothing to send");
+		}
+		_frames = 0;
+		_periodicFrames = 0;
+		_bytes = 0;
+		_busNanos = 0;
+		_backoffs = 0;
+		_slips = 0;
+		_maxLateness = 0;
+		_nextId = _idFrom;
+		final long start = System.nanoTime();
+		final long end = durationNanos == Long.MAX_VALUE ? Long.MAX_VALUE
+				: start + durationNanos;
+		for (Periodic periodic : _schedule) {
+			periodic._due = start;
+		}
+		long backgroundDue = start;
+		long count = 0;
+		while (count < frames) {
+			Periodic next = null;
+			for (Periodic periodic : _schedule) {
+				if (next == null || periodic._due - next._due < 0) {
+					next = periodic;
+				}
+			}
+			final boolean periodic = next != null
+					&& (!_background || next._due - backgroundDue <= 0);
+			final long due = periodic ? next._due : backgroundDue;
+			if (end != Long.MAX_VALUE && due - end >= 0) {
+				break;
+			}
+			if (due - System.nanoTime() > 0) {
+				Pacer.pauseUntil(due);
+			}
+			if (Thread.interrupted()) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("generator interrupted");
+			}
+			final long busNanos;
+			if (periodic) {
+				busNanos = send(next._canId, next._data, next._data.length,
+						due);
+				_periodicFrames++;
+				next._due = reschedule(next._due, next._periodNanos);
+				if (!_background) {
+					count++;
+				}
+			} else {
+				busNanos = sendBackground(due);
+				count++;
+			}
+			if (_busLoadPercent > 0) {
+				/* periodic frames take their share of a bus load target */
+				backgroundDue = reschedule(backgroundDue, busNanos * 100
+						/ _busLoadPercent);
+			} else if (_gapNanos > 0) {
+				if (!periodic) {
+					backgroundDue = reschedule(backgroundDue, _gapNanos);
+				}
+			} else {
+				/* unpaced: due whenever no periodic frame is */
+				backgroundDue = System.nanoTime();
+			}
+		}
+		return new Report(_frames, _periodicFrames, _bytes, _busNanos,
+				_backoffs, _slips, _maxLateness, System.nanoTime() - start,
+				_gapNanos > 0 ? 1e9 / _gapNanos : 0, _busLoadPercent);
+	}
+
+	/* next deadline on the absolute schedule, unless it fell too far behind */
+	private long reschedule(final long due, final long gap) {
+		final long now = System.nanoTime();
+		if (now - (due + gap) > MAX_LAG_NANOS) {
+			_slips++;
+			return now;
+		}
+		return due + gap;
+	}
+
+	private long sendBackground(final long due) throws IOException {
+		int canId;
+		switch (_idMode) {
+		case INCREMENT:
+			canId = _nextId;
+			_nextId = _nextId == _idTo ? _idFrom : _nextId + 1;
+			break;
+		case RANDOM:
+			canId = _idFrom + (int) ((_random.nextInt() & 0xFFFFFFFFL)
+					% ((long) _idTo - _idFrom + 1));
+			break;
+		default:
+			canId = _idFrom;
+			break;
+		}
+		if (_extended) {
+			canId |= CanSocket.CAN_EFF_FLAG;
+		}
+		final int length = nextLength();
+		switch (_payloadMode) {
+		case INCREMENT:
+			for (int i = 0; i < length; i++) {
+				_data[i] = (byte) (_counter >>> (8 * i));
+			}
+			_counter++;
+			break;
+		case RANDOM:
+			long bits = _random.nextLong();
+			for (int i = 0; i < length; i++, bits >>>= 8) {
+				_data[i] = (byte) bits;
+			}
+			break;
+		default:
+			System.arraycopy(_payload, 0, _data, 0, length);
+			break;
+		}
+		return send(canId, _data, length, due);
+	}
+
+	private int nextLength() {
+		final int total = _lengthWeights[8];
+		if (total == _lengthWeights[0]) {
+			return 0;
+		}
+		final int r = _random.nextInt(total);
+		int length = 0;
+		while (r >= _lengthWeights[length]) {
+			length++;
+		}
+		return length;
+	}
+
+	/**
+	 * @return time the frame takes on the bus, 0 without a bitrate
+	 */
+	private long send(final int canId, final byte[] data, final int length,
+			final long due) throws IOException {
+		final long late = System.nanoTime() - due;
+		if (late > _maxLateness) {
+			_maxLateness = late;
+		}
+		boolean stalled = false;
+		while (!_socket.trySend(_canIf, canId, data, 0, length)) {
+			stalled = true;
+			_backoffs++;
+			LockSupport.parkNanos(_backoffNanos);
+			if (Thread.interrupted()) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("generator interrupted");
+			}
+			_backoffNanos = Math.min(_backoffNanos * 2, MAX_BACKOFF_NANOS);
+		}
+		if (!stalled) {
+			_backoffNanos = Math.max(_backoffNanos / 2, MIN_BACKOFF_NANOS);
+		}
+		_frames++;
+		_bytes += length;
+		if (_bitrate == 0) {
+			return 0;
+		}
+		final long busNanos = Pacer.frameNanos(
+				(canId & CanSocket.CAN_EFF_FLAG) != 0, length, _bitrate);
+		_busNanos += busNanos;
+		return busNanos;
+	}
+}
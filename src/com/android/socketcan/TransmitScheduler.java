@@ -0,0 +1,439 @@
+package com.android.socketcan;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import android.util.Log;
+
+import com.android.socketcan.CanSocket.CanFrame;
+import com.android.socketcan.CanSocket.CanId;
+import com.android.socketcan.CanSocket.CanInterface;
+
+/**
+ * Sends frames in CAN arbitration order instead of call order. Frames wait
+ * in a lock-free queue sorted by identifier, lowest first, with frames of
+ * the same identifier kept in submission order. One sender thread writes
+ * them to the socket.
+ *
+ * The driver queue itself is FIFO, so a high priority frame would still
+ * wait behind every bulk frame already written. With an in-flight window
+ * set, the scheduler writes at most that many frames before they were
+ * echoed back (CAN_RAW_RECV_OWN_MSGS), i.e. sent on the bus. That keeps
+ * the driver queue short and the latency of low identifiers flat.
+ *
+ * Frames may carry a deadline; a frame still queued after its deadline is
+ * dropped instead of sent late.
+ *
+ * The scheduler owns the socket and closes it in close(). With a window
+ * set it also changes the socket's loopback options and reads (and
+ * discards) everything the socket receives.
+ *
+ * If writing to or reading from the socket fails, the scheduler stops and
+ * submit() throws an IllegalStateException with the failure as its cause.
+ *
+ * @author aplex
+ *
+ */
+public final class TransmitScheduler implements Closeable {
+
+	private static final String TAG = "TransmitScheduler";
+
+	public static final int DEFAULT_CAPACITY = 1024;
+
+	private static final long MIN_BACKOFF_NANOS = TimeUnit.MICROSECONDS
+			.toNanos(50);
+	private static final long MAX_BACKOFF_NANOS = TimeUnit.MILLISECONDS
+			.toNanos(10);
+
+	/* after this long without an echo the window is considered lost */
+	private static final long ECHO_TIMEOUT_NANOS = TimeUnit.MILLISECONDS
+			.toNanos(100);
+
+	private static final class Entry implements Comparable<Entry> {
+		final long _key;
+		final long _seq;
+		final int _canId;
+		final byte[] _data;
+		final long _deadline;
+
+		Entry(final long key, final long seq, final int canId,
+				final byte[] data, final long deadline) {
+			this._key = key;
+			this._seq = seq;
+			this._canId = canId;
+			this._data = data;
+			this._deadline = deadline;
+		}
+
+		@Override
+		public int compareTo(final Entry other) {
+			if (_key != other._key) {
+				return _key < other._key ? -1 : 1;
+			}
+			return _seq < other._seq ? -1 : (_seq == other._seq ? 0 : 1);
+		}
+	}
+
+	private final CanSocket _socket;
+	private final CanInterface _canIf;
+	private final int _capacity;
+	private final ConcurrentSkipListSet<Entry> _queue = new ConcurrentSkipListSet<Entry>();
+	private final AtomicInteger _queued = new AtomicInteger();
+	private final AtomicLong _seq = new AtomicLong();
+	private final AtomicInteger _inFlight = new AtomicInteger();
+	private int _window;
+
+	private final AtomicLong _sent = new AtomicLong();
+	private final AtomicLong _expired = new AtomicLong();
+	private final AtomicLong _rejected = new AtomicLong();
+	private final AtomicLong _echoTimeouts = new AtomicLong();
+
+	private volatile boolean _running;
+	private volatile Throwable _failure;
+	private volatile boolean _senderParked;
+	private volatile long _lastEchoAt;
+	private Thread _sender;
+	private Thread _echoReader;
+
+	public TransmitScheduler(final CanSocket socket, final CanInterface canIf) {
+		this(socket, canIf, DEFAULT_CAPACITY);
+	}
+
+	/**
+	 * @param socket
+	 * @param canIf
+	 * @param capacity
+	 *            frames that may wait in the queue
+	 */
+	public TransmitScheduler(final CanSocket socket, final CanInterface canIf,
+			final int capacity) {
+		if (capacity <= 0) {
+			throw new IllegalArgumentException("illegal capacity: " + capacity);
+		}
+		this._socket = socket;
+		this._canIf = canIf;
+		this._capacity = capacity;
+	}
+
+	/**
+	 * Limits the frames written to the socket but not yet echoed back; 0,
+	 * the default, writes as long as the driver accepts frames. Must be
+	 * called before start().
+	 *
+	 * @param frames
+	 * @return
+	 */
+	public synchronized TransmitScheduler setInFlightWindow(final int frames) {
+		if (frames < 0) {
+			throw new IllegalArgumentException("illegal window: " + frames);
+		}
+		if (_sender != null) {
+			throw new IllegalStateException("already started");
+		}
+		this._window = frames;
+		return this;
+	}
+
+	public synchronized void start() throws IOException {
+		if (_sender != null) {
+			throw new IllegalStateException("already started");
+		}
+		if (_window > 0) {
+			_socket.setLoopbackMode(true);
+			_socket.setRecvOwnMsgsMode(true);
+			_echoReader = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					readEchoes();
+				}
+			}, TAG + "-echo");
+			_echoReader.setDaemon(true);
+		}
+		_running = true;
+		_sender = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				runSender();
+			}
+		}, TAG);
+		_sender.setDaemon(true);
+		_sender.start();
+		if (_echoReader != null) {
+			_echoReader.start();
+		}
+	}
+
+	/**
+	 * Queues a frame without deadline
+	 *
+	 * @return false if the queue is full
+	 */
+	public boolean submit(final CanId canId, final byte[] data) {
+		return enqueue(canId._canId, data, 0);
+	}
+
+	/**
+	 * Queues a frame that is dropped if it can't be sent within timeout
+	 *
+	 * @param canId
+	 * @param data
+	 *            copied, at most 8 bytes
+	 * @param timeout
+	 * @param unit
+	 * @return false if the queue is full
+	 */
+	public boolean submit(final CanId canId, final byte[] data,
+			final long timeout, final TimeUnit unit) {
+		/* 0 means no deadline, so a deadline that happens to be 0 is nudged */
+		final long deadline = System.nanoTime() + unit.toNanos(timeout);
+		return enqueue(canId._canId, data, deadline == 0 ? 1 : deadline);
+	}
+
+	private boolean enqueue(final int canId, final byte[] data,
+			final long deadline) {
+		if (data.length > 8) {
+			throw new IllegalArgumentException("illegal frame length");
+		}
+		if (!_running) {
+			final Throwable failure = _failure;
+			throw new IllegalStateException(failure != null ? "scheduler failed"
+					: "not running", failure);
+		}
+		if (_queued.incrementAndGet() > _capacity) {
+			_queued.decrementAndGet();
+			_rejected.incrementAndGet();
+			return false;
+		}
+		_queue.add(new Entry(CanId.arbitrationKey(canId),
+				_seq.getAndIncrement(), canId, data.clone(), deadline));
+		if (_senderParked) {
+			LockSupport.unpark(_sender);
+		}
+		return true;
+	}
+
+	/**
+	 * @return what stopped the scheduler, null while running or if it was
+	 *         stopped by close()
+	 */
+	public Throwable getFailure() {
+		return _failure;
+	}
+
+	/**
+	 * @return frames written to the socket
+	 */
+	public long getSent() {
+		return _sent.get();
+	}
+
+	/**
+	 * @return frames dropped because their deadline passed in the queue
+	 */
+	public long getExpired() {
+		return _expired.get();
+	}
+
+	/**
+	 * @return submits refused because the queue was full
+	 */
+	public long getRejected() {
+		return _rejected.get();
+	}
+
+	/**
+	 * @return how often the window was reset because echoes stopped
+	 */
+	public long getEchoTimeouts() {
+		return _echoTimeouts.get();
+	}
+
+	public int getQueued() {
+		return _queued.get();
+	}
+
+	public int getInFlight() {
+		return _inFlight.get();
+	}
+
+	/**
+	 * Stops the scheduler, discards queued frames and closes the socket
+	 */
+	@Override
+	public void close() throws IOException {
+		final Thread sender;
+		final Thread echoReader;
+		synchronized (this) {
+			_running = false;
+			sender = _sender;
+			echoReader = _echoReader;
+		}
+		try {
+			_socket.close();
+		} finally {
+			if (sender != null) {
+				LockSupport.unpark(sender);
+				join(sender);
+			}
+			if (echoReader != null) {
+				join(echoReader);
+			}
+			_queue.clear();
+			_queued.set(0);
+		}
+	}
+
+	private static void join(final Thread thread) {
+		boolean interrupted = false;
+		for (;;) {
+			try {
+				thread.join();
+				break;
+			} catch (InterruptedException e) {
+				interrupted = true;
+			}
+		}
+		if (interrupted) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private void runSender() {
+		long backoffNanos = MIN_BACKOFF_NANOS;
+		try {
+			while (_running) {
+				if (!windowOpen()) {
+					park(ECHO_TIMEOUT_NANOS);
+					continue;
+				}
+				final Entry entry = _queue.pollFirst();
+				if (entry == null) {
+					park(0);
+					continue;
+				}
+				if (entry._deadline != 0
+						&& System.nanoTime() - entry._deadline > 0) {
+					_queued.decrementAndGet();
+					_expired.incrementAndGet();
+					continue;
+				}
+				/*
+				 * Counted before the write: on vcan the echo can be read
+				 * before trySend() returns
+				 */
+				final boolean counted = _window > 0;
+				if (counted && _inFlight.getAndIncrement() == 0) {
+					_lastEchoAt = System.nanoTime();
+				}
+				boolean sent = false;
+				try {
+					sent = _socket.trySend(_canIf, entry._canId, entry._data,
+							0, entry._data.length);
+				} finally {
+					if (counted && !sent && _inFlight.decrementAndGet() < 0) {
+						/* a stale echo from before a window reset took it */
+						_inFlight.incrementAndGet();
+					}
+				}
+				if (!sent) {
+					/* driver queue full: retry the same frame unless a better one arrives */
+					_queue.add(entry);
+					LockSupport.parkNanos(this, backoffNanos);
+					backoffNanos = Math.min(backoffNanos * 2, MAX_BACKOFF_NANOS);
+					continue;
+				}
+				backoffNanos = MIN_BACKOFF_NANOS;
+				_queued.decrementAndGet();
+				_sent.incrementAndGet();
+			}
+		} catch (IOException e) {
+			fail("send failed", e);
+		} catch (RuntimeException e) {
+			fail("send failed", e);
+		}
+	}
+
+	/**
+	 * Stops the scheduler after a failure of one of its threads, so that
+	 * submit() stops accepting frames that would never be sent
+	 */
+	private void fail(final String what, final Throwable e) {
+		synchronized (this) {
+			if (!_running) {
+				/* closed, the failure is a consequence */
+				return;
+			}
+			_failure = e;
+			_running = false;
+		}
+		Log.e(TAG, what + ": " + e.getMessage());
+		LockSupport.unpark(_sender);
+		if (_echoReader != null) {
+			_echoReader.interrupt();
+		}
+	}
+
+	private boolean windowOpen() {
+		if (_window == 0 || _inFlight.get() < _window) {
+			return true;
+		}
+		if (System.nanoTime() - _lastEchoAt > ECHO_TIMEOUT_NANOS) {
+			/* echoes lost, e.g. bus-off or a driver without IFF_ECHO */
+			_echoTimeouts.incrementAndGet();
+			_inFlight.set(0);
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Parks the sender until submit() or an echo unparks it
+	 *
+	 * @param nanos
+	 *            0 waits without limit
+	 */
+	private void park(final long nanos) {
+		_senderParked = true;
+		try {
+			/* recheck after announcing the park, submit() may have missed it */
+			if (!_running || (!_queue.isEmpty() && windowOpen())) {
+				return;
+			}
+			if (nanos > 0) {
+				LockSupport.parkNanos(this, nanos);
+			} else {
+				LockSupport.park(this);
+			}
+		} finally {
+			_senderParked = false;
+		}
+	}
+
+	private void readEchoes() {
+		try {
+			while (_running) {
+				final CanFrame frame = _socket.recv();
+				if (!frame.isOwnMessage()) {
+					continue;
+				}
+				_lastEchoAt = System.nanoTime();
+				if (_inFlight.getAndDecrement() <= 0) {
+					/* echo of a frame written before a window reset */
+					_inFlight.incrementAndGet();
+				}
+				if (_senderParked) {
+					LockSupport.unpark(_sender);
+				}
+			}
+		} catch (IOException e) {
+			fail("echo reader stopped", e);
+		} catch (RuntimeException e) {
+			fail("echo reader stopped", e);
+		}
+	}
+}
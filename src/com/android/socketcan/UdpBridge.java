@@ -0,0 +1,446 @@
+package com.android.socketcan;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.InetSocketAddress;
+import java.net.PortUnreachableException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousCloseException;
+import java.nio.channels.DatagramChannel;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import android.util.Log;
+
+import com.android.socketcan.CanSocket.CanFrame;
+import com.android.socketcan.CanSocket.CanInterface;
+
+/**
+ * Tunnels a CAN bus over UDP in the cannelloni format, so either end can be
+ * a cannelloni instance. Received frames are packed into datagrams that are
+ * sent when the next frame would not fit or when the oldest frame has
+ * waited for the flush interval. Datagrams from the peer are unpacked and
+ * sent on the socket.
+ *
+ * Datagram: version (2), op code (0 = data), sequence number, frame count
+ * (16 bit), then per frame the canid_t (32 bit), the length and the
+ * payload; remote frames carry no payload. Everything is big-endian. The
+ * 8 bit sequence number lets the receiving side count lost datagrams.
+ *
+ * The bridge owns the channel, which close() closes, but not the socket.
+ * An ICMP port unreachable from a peer that isn't up yet is counted and
+ * ignored; any other failure stops both directions and is kept as
+ * getFailure().
+ *
+ * @author aplex
+ *
+ */
+public final class UdpBridge implements Closeable {
+
+	private static final String TAG = "UdpBridge";
+
+	static final int VERSION = 2;
+	static final int OP_DATA = 0;
+	static final int HEADER_SIZE = 5;
+
+	/* length flag of CAN FD frames, followed by a flags byte */
+	private static final int CANFD_FRAME = 0x80;
+
+	private static final int CAN_MAX_DLEN = 8;
+	private static final int CANFD_MAX_DLEN = 64;
+
+	/* Ethernet MTU minus IPv4 and UDP headers */
+	public static final int DEFAULT_DATAGRAM_SIZE = 1472;
+
+	private static final int MAX_FRAME_SIZE = 4 + 1 + 8;
+
+	private final CanSocket _socket;
+	private final CanInterface _canIf;
+	private final DatagramChannel _channel;
+	private long _flushNanos = TimeUnit.MILLISECONDS.toNanos(10);
+	private int _datagramSize = DEFAULT_DATAGRAM_SIZE;
+
+	private final AtomicLong _framesOut = new AtomicLong();
+	private final AtomicLong _datagramsOut = new AtomicLong();
+	private final AtomicLong _framesIn = new AtomicLong();
+	private final AtomicLong _datagramsIn = new AtomicLong();
+	private final AtomicLong _datagramsLost = new AtomicLong();
+	private final AtomicLong _framesDropped = new AtomicLong();
+	private final AtomicLong _malformed = new AtomicLong();
+	private final AtomicLong _unreachable = new AtomicLong();
+
+	private volatile boolean _running;
+	private volatile Throwable _failure;
+	private Thread _outbound;
+	private Thread _inbound;
+
+	/**
+	 * @param socket
+	 *            frames received here go to the peer
+	 * @param canIf
+	 *            frames from the peer are sent here
+	 * @param channel
+	 *            bound and connected to the peer
+	 */
+	public UdpBridge(final CanSocket socket, final CanInterface canIf,
+			final DatagramChannel channel) {
+		if (!channel.isConnected()) {
+			throw new IllegalArgumentException("channel not connected");
+		}
+		this._socket = socket;
+		this._canIf = canIf;
+		this._channel = channel;
+	}
+
+	/**
+	 * Opens a channel bound to local and connected to remote
+	 *
+	 * @return
+	 * @throws IOException
+	 */
+	public static DatagramChannel openChannel(final InetSocketAddress local,
+			final InetSocketAddress remote) throws IOException {
+		final DatagramChannel channel = DatagramChannel.open();
+		try {
+			channel.socket().bind(local);
+			channel.connect(remote);
+		} catch (IOException e) {
+			channel.close();
+			throw e;
+		}
+		return channel;
+	}
+
+	/**
+	 * How long a frame may wait for more to share its datagram
+	 *
+	 * @param interval
+	 * @param unit
+	 * @return
+	 */
+	public synchronized UdpBridge setFlushInterval(final long interval,
+			final TimeUnit unit) {
+		checkNotStarted();
+		this._flushNanos = unit.toNanos(interval);
+		return this;
+	}
+
+	/**
+	 * @param bytes
+	 *            upper bound of one datagram, header included
+	 * @return
+	 */
+	public synchronized UdpBridge setDatagramSize(final int bytes) {
+		checkNotStarted();
+		if (bytes < HEADER_SIZE + MAX_FRAME_SIZE || bytes > 65507) {
+			throw new IllegalArgumentException("illegal datagram size: "
+					+ bytes);
+		}
+		this._datagramSize = bytes;
+		return this;
+	}
+
+	private void checkNotStarted() {
+		if (_outbound != null) {
+			throw new IllegalStateException("already started");
+		}
+	}
+
+	public synchronized void start() {
+		checkNotStarted();
+		_running = true;
+		_outbound = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				runOutbound();
+			}
+		}, TAG + "-out");
+		_inbound = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				runInbound();
+			}
+		}, TAG + "-in");
+		_outbound.setDaemon(true);
+		_inbound.setDaemon(true);
+		_outbound.start();
+		_inbound.start();
+	}
+
+	/**
+	 * @return frames sent to the peer
+	 */
+	public long getFramesOut() {
+		return _framesOut.get();
+	}
+
+	public long getDatagramsOut() {
+		return _datagramsOut.get();
+	}
+
+	/**
+	 * @return frames received from the peer
+	 */
+	public long getFramesIn() {
+		return _framesIn.get();
+	}
+
+	public long getDatagramsIn() {
+		return _datagramsIn.get();
+	}
+
+	/**
+	 * @return datagrams missing from the peer's sequence
+	 */
+	public long getDatagramsLost() {
+		return _datagramsLost.get();
+	}
+
+	/**
+	 * @return frames from the peer the socket couldn't take (ENOBUFS, CAN
+	 *         FD payloads)
+	 */
+	public long getFramesDropped() {
+		return _framesDropped.get();
+	}
+
+	/**
+	 * @return datagrams that were not valid cannelloni data
+	 */
+	public long getMalformed() {
+		return _malformed.get();
+	}
+
+	/**
+	 * @return reads and writes that failed with ICMP port unreachable
+	 */
+	public long getPortUnreachable() {
+		return _unreachable.get();
+	}
+
+	/**
+	 * @return what stopped the bridge, null while running or if it was
+	 *         stopped by close()
+	 */
+	public Throwable getFailure() {
+		return _failure;
+	}
+
+	/**
+	 * Stops both directions after a failure in one of them
+	 */
+	private void fail(final String what, final Throwable e) {
+		final Thread other;
+		synchronized (this) {
+			if (!_running) {
+				return;
+			}
+			_failure = e;
+			_running = false;
+			other = Thread.currentThread() == _outbound ? _inbound
+					: _outbound;
+		}
+		Log.e(TAG, what + " stopped: " + e);
+		/* the interrupt closes the channel under a blocking read() */
+		other.interrupt();
+	}
+
+	/**
+	 * Stops both directions and closes the channel; the socket stays open
+	 */
+	@Override
+	public void close() throws IOException {
+		final Thread outbound;
+		final Thread inbound;
+		synchronized (this) {
+			_running = false;
+			outbound = _outbound;
+			inbound = _inbound;
+		}
+		/* wakes up the blocking read() */
+		_channel.close();
+		if (outbound == null) {
+			return;
+		}
+		/* recv() answers the interrupt with InterruptedIOException */
+		outbound.interrupt();
+		join(outbound);
+		join(inbound);
+	}
+
+	private static void join(final Thread thread) {
+		boolean interrupted = false;
+		for (;;) {
+			try {
+				thread.join();
+				break;
+			} catch (InterruptedException e) {
+				interrupted = true;
+			}
+		}
+		if (interrupted) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private void runOutbound() {
+		final ByteBuffer datagram = ByteBuffer.allocateDirect(_datagramSize);
+		int sequence = 0;
+		int count = 0;
+		long flushAt = 0;
+		datagram.position(HEADER_SIZE);
+		try {
+			while (_running) {
+				final CanFrame frame;
+				if (count == 0) {
+					frame = _socket.recv();
+				} else {
+					final long wait = flushAt - System.nanoTime();
+					frame = wait > 0 ? _socket.recv(wait,
+							TimeUnit.NANOSECONDS) : null;
+				}
+				if (frame == null) {
+					/* the oldest frame has waited long enough */
+					send(datagram, sequence++, count);
+					count = 0;
+					continue;
+				}
+				if (datagram.remaining() < MAX_FRAME_SIZE || count == 0xFFFF) {
+					send(datagram, sequence++, count);
+					count = 0;
+				}
+				if (count == 0) {
+					flushAt = System.nanoTime() + _flushNanos;
+				}
+				put(datagram, frame);
+				count++;
+			}
+		} catch (InterruptedIOException e) { /* stopped by close() */
+		} catch (AsynchronousCloseException e) { /* EMPTY */
+		} catch (IOException e) {
+			if (!_socket.isClosed()) {
+				fail("outbound", e);
+			}
+		} catch (RuntimeException e) {
+			fail("outbound", e);
+		}
+	}
+
+	private static void put(final ByteBuffer datagram, final CanFrame frame) {
+		final int canId = frame.getCanId()._canId;
+		final byte[] data = frame.getData();
+		datagram.putInt(canId);
+		datagram.put((byte) data.length);
+		if ((canId & CanSocket.CAN_RTR_FLAG) == 0) {
+			datagram.put(data);
+		}
+	}
+
+	private void send(final ByteBuffer datagram, final int sequence,
+			final int count) throws IOException {
+		datagram.put(0, (byte) VERSION);
+		datagram.put(1, (byte) OP_DATA);
+		datagram.put(2, (byte) sequence);
+		datagram.putShort(3, (short) count);
+		datagram.flip();
+		try {
+			_channel.write(datagram);
+			_datagramsOut.incrementAndGet();
+			_framesOut.addAndGet(count);
+		} catch (PortUnreachableException e) {
+			/* the peer isn't listening (yet), the frames are lost */
+			_unreachable.incrementAndGet();
+		}
+		datagram.clear();
+		datagram.position(HEADER_SIZE);
+	}
+
+	private void runInbound() {
+		final ByteBuffer datagram = ByteBuffer.allocateDirect(65536);
+		final byte[] data = new byte[64];
+		int expected = -1;
+		try {
+			while (_running) {
+				datagram.clear();
+				try {
+					_channel.read(datagram);
+				} catch (PortUnreachableException e) {
+					/* reported for an earlier write() */
+					_unreachable.incrementAndGet();
+					continue;
+				}
+				datagram.flip();
+				if (datagram.remaining() < HEADER_SIZE
+						|| datagram.get(0) != VERSION
+						|| datagram.get(1) != OP_DATA) {
+					_malformed.incrementAndGet();
+					continue;
+				}
+				final int sequence = datagram.get(2) & 0xFF;
+				if (expected >= 0) {
+					final int gap = (sequence - expected) & 0xFF;
+					/* a large gap is a late or repeated datagram, not a loss */
+					if (gap < 128) {
+						_datagramsLost.addAndGet(gap);
+					}
+				}
+				expected = (sequence + 1) & 0xFF;
+				_datagramsIn.incrementAndGet();
+				final int count = datagram.getShort(3) & 0xFFFF;
+				datagram.position(HEADER_SIZE);
+				try {
+					for (int i = 0; i < count; i++) {
+						if (!forward(datagram, data)) {
+							_malformed.incrementAndGet();
+							break;
+						}
+					}
+				} catch (BufferUnderflowException e) {
+					_malformed.incrementAndGet();
+				}
+			}
+		} catch (AsynchronousCloseException e) { /* stopped by close() */
+		} catch (IOException e) {
+			fail("inbound", e);
+		} catch (RuntimeException e) {
+			fail("inbound", e);
+		}
+	}
+
+	/**
+	 * @return false if the frame's length is out of range, which leaves the
+	 *         rest of the datagram unreadable
+	 */
+	private boolean forward(final ByteBuffer datagram, final byte[] data)
+			throws IOException {
+		final int canId = datagram.getInt();
+		int length = datagram.get() & 0xFF;
+		final boolean fd = (length & CANFD_FRAME) != 0;
+		if (fd) {
+			length &= ~CANFD_FRAME;
+			datagram.get(); /* CAN FD flags */
+		}
+		if (length > (fd ? CANFD_MAX_DLEN : CAN_MAX_DLEN)) {
+			return false;
+		}
+		if ((canId & CanSocket.CAN_RTR_FLAG) == 0) {
+			datagram.get(data, 0, length);
+		} else {
+			/* a remote frame keeps its DLC but carries no payload */
+			Arrays.fill(data, 0, length, (byte) 0);
+		}
+		_framesIn.incrementAndGet();
+		if (fd) {
+			/* the socket sends classic frames only */
+			_framesDropped.incrementAndGet();
+			return true;
+		}
+		if (!_socket.trySend(_canIf, canId, data, 0, length)) {
+			_framesDropped.incrementAndGet();
+		}
+		return true;
+	}
+}
@@ -0,0 +1,402 @@
+package com.android.socketcan;
+
+import java.io.IOException;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import com.android.socketcan.CanSocket.CanFrame;
+import com.android.socketcan.CanSocket.CanId;
+import com.android.socketcan.CanSocket.CanInterface;
+
+/**
+ * In-process stand-in for a vcan interface. Every socket opened on the bus
+ * gets a CanTransport with its own lock-free receive queue, and sent frames
+ * are fanned out to all of them following the CAN_RAW_LOOPBACK and
+ * CAN_RAW_RECV_OWN_MSGS rules of SocketCAN.
+ *
+ * With a bitrate of 0 frames are delivered in the sending thread as fast as
+ * possible. With a bitrate set, each socket gets a bounded transmit queue and
+ * a wire thread sends one frame at a time, taking the nominal frame length
+ * (without stuff bits) on the wire and always picking the queued frame that
+ * would win arbitration, i.e. the lowest identifier.
+ *
+ * Received frames are shared between all receivers and must not be modified.
+ *
+ * @author aplex
+ *
+ */
+public final class VirtualCanBus {
+
+	private static final String TAG = "VirtualCanBus";
+
+	public static final int DEFAULT_QUEUE_SIZE = 1024;
+
+	/* virtual ifindexes stay clear of kernel ones and of the registry */
+	private static final AtomicInteger NEXT_IF_INDEX = new AtomicInteger(
+			0x40000000);
+
+	private final CanInterface _canIf;
+	private final int _bitrate;
+	private final int _queueSize;
+	private final CopyOnWriteArrayList<Port> _ports = new CopyOnWriteArrayList<Port>();
+	private final AtomicLong _framesSent = new AtomicLong();
+	private final AtomicLong _framesStarted = new AtomicLong();
+	private final AtomicLong _framesDropped = new AtomicLong();
+	private final Thread _wire;
+	private volatile boolean _closed;
+
+	private final WallClock _clock = WallClock.INSTANCE;
+
+	/**
+	 * Unpaced bus
+	 *
+	 * @param ifName
+	 */
+	public VirtualCanBus(final String ifName) {
+		this(ifName, 0, DEFAULT_QUEUE_SIZE);
+	}
+
+	/**
+	 * @param ifName
+	 * @param bitrate
+	 *            bits per second, 0 delivers without pacing
+	 * @param queueSize
+	 *            frames per receive and per transmit queue
+	 */
+	public VirtualCanBus(final String ifName, final int bitrate,
+			final int queueSize) {
+		if (bitrate < 0) {
+			throw new IllegalArgumentException("illegal bitrate: " + bitrate);
+		}
+		this._canIf = new CanInterface(NEXT_IF_INDEX.getAndIncrement(), ifName);
+		this._bitrate = bitrate;
+		this._queueSize = queueSize;
+		if (bitrate > 0) {
+			_wire = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					runWire();
+				}
+			}, TAG + "-" + ifName);
+			_wire.setDaemon(true);
+			_wire.start();
+		} else {
+			_wire = null;
+		}
+	}
+
+	public CanInterface getInterface() {
+		return _canIf;
+	}
+
+	public int getBitrate() {
+		return _bitrate;
+	}
+
+	/**
+	 * @return frames that went over the bus
+	 */
+	public long getFramesSent() {
+		return _framesSent.get();
+	}
+
+	/**
+	 * @return frames the wire thread took from a transmit queue, including
+	 *         the one on the wire right now
+	 */
+	long getFramesStarted() {
+		return _framesStarted.get();
+	}
+
+	/**
+	 * @return frames lost because a receive queue was full
+	 */
+	public long getFramesDropped() {
+		return _framesDropped.get();
+	}
+
+	/**
+	 * Attaches a new transport to the bus
+	 *
+	 * @return
+	 * @throws IOException
+	 */
+	public CanTransport attach() throws IOException {
+		if (_closed) {
+			throw new IOException("Network is down");
+		}
+		final Port port = new Port();
+		_ports.add(port);
+		return port;
+	}
+
+	public CanSocket openSocket() throws IOException {
+		return new CanSocket(attach());
+	}
+
+	/**
+	 * Stops the wire thread; queued frames are discarded and further sends
+	 * fail
+	 */
+	public void close() {
+		_closed = true;
+		if (_wire != null) {
+			LockSupport.unpark(_wire);
+		}
+	}
+
+	private boolean transmit(final Port sender, final int canId,
+			final byte[] data) throws IOException {
+		if (_closed) {
+			throw new IOException("Network is down");
+		}
+		final CanFrame frame = new CanFrame(_canIf, new CanId(canId), data);
+		if (_wire == null) {
+			fanOut(sender, frame);
+			return true;
+		}
+		if (!sender._tx.offer(frame)) {
+			return false;
+		}
+		LockSupport.unpark(_wire);
+		return true;
+	}
+
+	private void fanOut(final Port sender, final CanFrame frame) {
+		_framesSent.incrementAndGet();
+		if (!sender._loopback) {
+			return;
+		}
+		long timestamp = 0;
+		for (Port port : _ports) {
+			final boolean own = port == sender;
+			if (own && !port._recvOwnMsgs) {
+				continue;
+			}
+			if (!own && !port._timestamps) {
+				port.deliver(frame);
+				continue;
+			}
+			if (port._timestamps && timestamp == 0) {
+				timestamp = _clock.nowMicros();
+			}
+			port.deliver(new CanFrame(_canIf, frame.getCanId(), frame
+					.getData(), own, port._timestamps ? timestamp : 0));
+		}
+	}
+
+	private void runWire() {
+		long busFreeAt = System.nanoTime();
+		boolean idle = true;
+		while (!_closed) {
+			Port winner = null;
+			long best = Long.MAX_VALUE;
+			for (Port port : _ports) {
+				final CanFrame head = port._tx.peek();
+				if (head != null) {
+					final long key = CanId.arbitrationKey(head.getCanId()._canId);
+					if (key < best) {
+						best = key;
+						winner = port;
+					}
+				}
+			}
+			if (winner == null) {
+				LockSupport.park(this);
+				idle = true;
+				continue;
+			}
+			final CanFrame frame = winner._tx.poll();
+			_framesStarted.incrementAndGet();
+			final CanId canId = frame.getCanId();
+			final long frameNanos = Pacer.frameNanos(canId.isSetEFFSFF(),
+					canId.isSetRTR() ? 0 : frame.getData().length, _bitrate);
+			/*
+			 * A frame that was already waiting follows the last one back to
+			 * back; starting at now instead would add our own overhead to
+			 * every frame. After a stall of this thread the wire catches up.
+			 */
+			final long start = idle ? Math.max(System.nanoTime(), busFreeAt)
+					: busFreeAt;
+			idle = false;
+			busFreeAt = start + frameNanos;
+			Pacer.pauseUntil(busFreeAt);
+			fanOut(winner, frame);
+		}
+	}
+
+	/**
+	 * One attached socket
+	 */
+	private final class Port implements CanTransport {
+		private final BoundedQueue<CanFrame> _rx = new BoundedQueue<CanFrame>(
+				_queueSize);
+		private final BoundedQueue<CanFrame> _tx = new BoundedQueue<CanFrame>(
+				_queueSize);
+		private final AtomicInteger _waiters = new AtomicInteger();
+		private final AtomicLong _dropped = new AtomicLong();
+		private final Object _lock = new Object();
+		private volatile boolean _woken;
+		private volatile boolean _loopback = true;
+		private volatile boolean _recvOwnMsgs;
+		private volatile boolean _timestamps;
+
+		void deliver(final CanFrame frame) {
+			if (!_rx.offer(frame)) {
+				_dropped.incrementAndGet();
+				_framesDropped.incrementAndGet();
+				return;
+			}
+			if (_waiters.get() > 0) {
+				synchronized (_lock) {
+					_lock.notifyAll();
+				}
+			}
+		}
+
+		private void checkInterface(final int ifIndex) throws IOException {
+			if (ifIndex != 0 && ifIndex != _canIf.getInterfaceIndex()) {
+				throw new IOException("No such device");
+			}
+		}
+
+		@Override
+		public void bind(final int ifIndex) throws IOException {
+			checkInterface(ifIndex);
+		}
+
+		@Override
+		public boolean send(final int ifIndex, final int canId,
+				final byte[] data, final int offset, final int length)
+				throws IOException {
+			checkInterface(ifIndex);
+			if (length < 0 || length > 8) {
+				throw new IllegalArgumentException("illegal frame length");
+			}
+			/* the caller may reuse its buffer, like with sendto() */
+			final byte[] copy = new byte[length];
+			System.arraycopy(data, offset, copy, 0, length);
+			return transmit(this, canId, copy);
+		}
+
+		@Override
+		public CanFrame recv(final int timeoutMs) throws IOException {
+			CanFrame frame = _rx.poll();
+			if (frame != null || timeoutMs == 0 || _woken) {
+				return frame;
+			}
+			_waiters.incrementAndGet();
+			try {
+				synchronized (_lock) {
+					frame = _rx.poll();
+					if (frame == null && !_woken) {
+						_lock.wait(timeoutMs < 0 ? 0 : timeoutMs);
+					}
+				}
+			} catch (InterruptedException e) {
+				/* CanSocket turns the interrupt status into InterruptedIOException */
+				Thread.currentThread().interrupt();
+			} finally {
+				_waiters.decrementAndGet();
+			}
+			return frame != null ? frame : _rx.poll();
+		}
+
+		@Override
+		public void wakeup() {
+			_woken = true;
+			synchronized (_lock) {
+				_lock.notifyAll();
+			}
+		}
+
+		@Override
+		public void clearWakeup() {
+			_woken = false;
+		}
+
+		@Override
+		public int discoverInterfaceIndex(final String ifName)
+				throws IOException {
+			if (!_canIf.getIfName().equals(ifName)) {
+				throw new IOException("No such device");
+			}
+			return _canIf.getInterfaceIndex();
+		}
+
+		@Override
+		public String discoverInterfaceName(final int ifIndex)
+				throws IOException {
+			if (ifIndex != _canIf.getInterfaceIndex()) {
+				throw new IOException("No such device");
+			}
+			return _canIf.getIfName();
+		}
+
+		@Override
+		public int getMtu(final String ifName) throws IOException {
+			discoverInterfaceIndex(ifName);
+			return CanSocket.CAN_MTU;
+		}
+
+		@Override
+		public void setLoopbackMode(final boolean on) {
+			_loopback = on;
+		}
+
+		@Override
+		public boolean getLoopbackMode() {
+			return _loopback;
+		}
+
+		@Override
+		public void setRecvOwnMsgsMode(final boolean on) {
+			_recvOwnMsgs = on;
+		}
+
+		@Override
+		public boolean getRecvOwnMsgsMode() {
+			return _recvOwnMsgs;
+		}
+
+		@Override
+		public void setTimestampMode(final boolean on) {
+			_timestamps = on;
+		}
+
+		@Override
+		public boolean getTimestampMode() {
+			return _timestamps;
+		}
+
+		/**
+		 * The queues keep the size given to the bus, so this only checks the
+		 * arguments
+		 */
+		@Override
+		public void setBufferSize(final boolean receive, final int bytes,
+				final boolean force) {
+			if (bytes < 0) {
+				throw new IllegalArgumentException("illegal buffer size: "
+						+ bytes);
+			}
+		}
+
+		@Override
+		public int getBufferSize(final boolean receive) {
+			return (receive ? _rx : _tx).capacity() * CanSocket.CAN_MTU;
+		}
+
+		@Override
+		public long getRxDropped() {
+			return _dropped.get();
+		}
+
+		@Override
+		public void close() {
+			_ports.remove(this);
+		}
+	}
+}
@@ -0,0 +1,26 @@
+package com.android.socketcan;
+
+/**
+ * Microseconds since the epoch for frames that get no kernel timestamp:
+ * the wall clock when the instance was created plus the monotonic clock
+ * since, so the values never step back when the system time is set. All
+ * users share INSTANCE, so their timestamps have the same base and can be
+ * compared with each other.
+ *
+ * @author aplex
+ *
+ */
+final class WallClock {
+
+	static final WallClock INSTANCE = new WallClock();
+
+	private final long _baseMicros = System.currentTimeMillis() * 1000;
+	private final long _baseNanos = System.nanoTime();
+
+	private WallClock() {
+	}
+
+	long nowMicros() {
+		return _baseMicros + (System.nanoTime() - _baseNanos) / 1000;
+	}
+}